@@ -2,6 +2,7 @@ package com.pr0gramm.app;
 
 import android.content.SharedPreferences;
 
+import com.pr0gramm.app.io.MediaCache;
 import com.pr0gramm.app.services.DownloadService;
 import com.pr0gramm.app.services.InboxNotificationCanceledReceiver;
 import com.pr0gramm.app.services.NotificationService;
@@ -48,6 +49,8 @@ public interface AppComponent {
 
     DownloadService downloadService();
 
+    MediaCache mediaCache();
+
     void inject(SyncIntentService service);
 
     void inject(SettingsActivity.SettingsFragment fragment);
@@ -77,7 +77,7 @@ public class AppModule {
 
     private static class OpenHelper extends SQLiteOpenHelper {
         public OpenHelper(Context context) {
-            super(context, "pr0-sqlbrite", null, 4);
+            super(context, "pr0-sqlbrite", null, 5);
         }
 
         @Override
@@ -88,6 +88,7 @@ public class AppModule {
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             onCreate(db);
+            DatabasePreloadManager.onUpgrade(db);
         }
     }
 }
@@ -6,14 +6,16 @@ import android.graphics.Bitmap;
 import com.google.common.base.Stopwatch;
 import com.google.common.net.HttpHeaders;
 import com.google.common.util.concurrent.Uninterruptibles;
-import com.jakewharton.picasso.OkHttp3Downloader;
 import com.pr0gramm.app.api.pr0gramm.Api;
 import com.pr0gramm.app.api.pr0gramm.ApiProvider;
 import com.pr0gramm.app.api.pr0gramm.LoginCookieHandler;
+import com.pr0gramm.app.io.HttpCachePartitions;
+import com.pr0gramm.app.io.MediaCache;
+import com.pr0gramm.app.io.PartitionedDownloader;
 import com.pr0gramm.app.services.proxy.HttpProxyService;
 import com.pr0gramm.app.services.proxy.ProxyService;
 import com.pr0gramm.app.util.AndroidUtility;
-import com.pr0gramm.app.util.GuavaPicassoCache;
+import com.pr0gramm.app.util.PicassoMemoryCache;
 import com.pr0gramm.app.util.SmallBufferSocketFactory;
 import com.squareup.picasso.Downloader;
 import com.squareup.picasso.Picasso;
@@ -21,7 +23,6 @@ import com.squareup.picasso.Picasso;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
@@ -29,7 +30,6 @@ import javax.inject.Singleton;
 
 import dagger.Module;
 import dagger.Provides;
-import okhttp3.Cache;
 import okhttp3.ConnectionPool;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
@@ -47,14 +47,11 @@ public class HttpModule {
 
     @Provides
     @Singleton
-    public OkHttpClient okHttpClient(Context context, LoginCookieHandler cookieHandler) {
+    public OkHttpClient okHttpClient(LoginCookieHandler cookieHandler) {
         final Logger okLogger = LoggerFactory.getLogger("OkHttpClient");
 
-        File cacheDir = new File(context.getCacheDir(), "imgCache");
-
         int version = AndroidUtility.buildVersionCode();
         return new OkHttpClient.Builder()
-                .cache(new Cache(cacheDir, 256 * 1024 * 1024))
                 .socketFactory(new SmallBufferSocketFactory())
 
                 .cookieJar(cookieHandler)
@@ -87,18 +84,36 @@ public class HttpModule {
                 .build();
     }
 
+    /**
+     * Thumbnails, media and api responses are cached separately. Everything that should
+     * be cached goes through the partitions. The plain client does not cache at all, it is
+     * left to uploads and to downloads that keep their results on their own, like the
+     * media cache.
+     */
+    @Provides
+    @Singleton
+    public HttpCachePartitions httpCachePartitions(Context context, OkHttpClient client) {
+        return HttpCachePartitions.create(context, client);
+    }
+
+    @Provides
+    @Singleton
+    public PicassoMemoryCache picassoMemoryCache() {
+        return PicassoMemoryCache.defaultSizedCache();
+    }
+
     @Provides
     @Singleton
-    public Downloader downloader(OkHttpClient client) {
-        return new OkHttp3Downloader(client);
+    public Downloader downloader(HttpCachePartitions partitions, PicassoMemoryCache memoryCache) {
+        return new PartitionedDownloader(partitions, memoryCache);
     }
 
     @Provides
     @Singleton
-    public ProxyService proxyService(Settings settings, OkHttpClient httpClient) {
+    public ProxyService proxyService(MediaCache mediaCache, OkHttpClient httpClient) {
         for (int i = 0; i < 10; i++) {
             try {
-                HttpProxyService proxy = new HttpProxyService(httpClient);
+                HttpProxyService proxy = new HttpProxyService(mediaCache, httpClient);
                 proxy.start();
 
                 // return the proxy
@@ -115,10 +130,10 @@ public class HttpModule {
 
     @Provides
     @Singleton
-    public Picasso picasso(Context context, Downloader downloader) {
+    public Picasso picasso(Context context, Downloader downloader, PicassoMemoryCache memoryCache) {
         return new Picasso.Builder(context)
                 .defaultBitmapConfig(Bitmap.Config.RGB_565)
-                .memoryCache(GuavaPicassoCache.defaultSizedGuavaCache())
+                .memoryCache(memoryCache)
                 .downloader(downloader)
                 .build();
     }
@@ -182,6 +182,14 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
         return firstNonNull(Ints.tryParse(value), 0);
     }
 
+    /**
+     * Number of bytes the preloaded files may use.
+     */
+    public long preloadBudget() {
+        String value = preferences.getString("pref_preload_budget", "512");
+        return firstNonNull(Ints.tryParse(value), 512) * 1024L * 1024L;
+    }
+
     public boolean useIncognitoBrowser() {
         return preferences.getBoolean("pref_use_incognito_browser", false);
     }
@@ -1,12 +1,12 @@
 package com.pr0gramm.app.api.categories;
 
 import com.google.gson.Gson;
+import com.pr0gramm.app.io.HttpCachePartitions;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
-import okhttp3.OkHttpClient;
 import retrofit2.Retrofit;
 import retrofit2.adapter.rxjava.RxJavaCallAdapterFactory;
 import retrofit2.converter.gson.GsonConverterFactory;
@@ -18,9 +18,9 @@ public class ExtraCategoryApiProvider implements Provider<ExtraCategoryApi> {
     private final ExtraCategoryApi api;
 
     @Inject
-    public ExtraCategoryApiProvider(OkHttpClient httpClient, Gson gson) {
+    public ExtraCategoryApiProvider(HttpCachePartitions partitions, Gson gson) {
         this.api = new Retrofit.Builder()
-                .client(httpClient)
+                .client(partitions.client(HttpCachePartitions.Partition.API))
                 .baseUrl("https://pr0.wibbly-wobbly.de/api/categories/v1/")
                 .addConverterFactory(GsonConverterFactory.create(gson))
                 .addCallAdapterFactory(RxJavaCallAdapterFactory.create())
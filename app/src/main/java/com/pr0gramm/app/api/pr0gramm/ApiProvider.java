@@ -3,18 +3,19 @@ package com.pr0gramm.app.api.pr0gramm;
 import android.annotation.SuppressLint;
 import android.content.Context;
 
-import com.google.common.base.Predicate;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.CharStreams;
 import com.google.common.reflect.Reflection;
-import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.gson.Gson;
 import com.pr0gramm.app.BuildConfig;
 import com.pr0gramm.app.Debug;
 import com.pr0gramm.app.Settings;
 import com.pr0gramm.app.Stats;
+import com.pr0gramm.app.io.HttpCachePartitions;
 import com.pr0gramm.app.services.UriHelper;
 import com.pr0gramm.app.util.AndroidUtility;
+import com.pr0gramm.app.util.BackgroundScheduler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,8 +24,9 @@ import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
-import java.util.concurrent.Callable;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -45,10 +47,16 @@ import rx.Observable;
 public class ApiProvider implements Provider<Api> {
     private static final Logger logger = LoggerFactory.getLogger("ApiProvider");
 
+    private static final int MAX_RETRIES = 2;
+    private static final long RETRY_BASE_DELAY_MILLIS = 500;
+
+    private static final Random jitter = new Random();
+
     private final Api apiInstance;
 
     @Inject
-    public ApiProvider(Context context, OkHttpClient client, LoginCookieHandler cookieHandler, Gson gson) {
+    public ApiProvider(Context context, HttpCachePartitions partitions, LoginCookieHandler cookieHandler, Gson gson) {
+        OkHttpClient client = partitions.client(HttpCachePartitions.Partition.API);
         this.apiInstance = newProxyWrapper(newRestAdapter(context, client, gson), cookieHandler);
     }
 
@@ -79,6 +87,14 @@ public class ApiProvider implements Provider<Api> {
     }
 
     private static Api newProxyWrapper(Api backend, LoginCookieHandler cookieHandler) {
+        // one circuit breaker per endpoint
+        ImmutableMap.Builder<Method, CircuitBreaker> breakers = ImmutableMap.builder();
+        for (Method method : Api.class.getMethods()) {
+            breakers.put(method, new CircuitBreaker(method.getName()));
+        }
+
+        ImmutableMap<Method, CircuitBreaker> circuitBreakers = breakers.build();
+
         // proxy to add the nonce if not provided
         return Reflection.newProxy(Api.class, (proxy, method, args) -> {
             Stopwatch watch = Stopwatch.createStarted();
@@ -107,75 +123,96 @@ public class ApiProvider implements Provider<Api> {
             }
 
             Object[] finalArgs = args;
-            Callable invoke = () -> method.invoke(backend, finalArgs);
+
             if (method.getReturnType() == Observable.class) {
-                // only retry a get method, and only do it once.
-                int retryCount = 1;
-                if (method.getAnnotation(GET.class) != null) {
-                    invoke = () -> invokeWithRetry(backend, method, finalArgs, ApiProvider::isHttpError, retryCount);
-                }
+                // only retry a get method, all others might not be idempotent.
+                int maxRetries = method.getAnnotation(GET.class) != null ? MAX_RETRIES : 0;
+                CircuitBreaker breaker = circuitBreakers.get(method);
+
+                return Observable.defer(() -> {
+                    // every subscription performs the call again and counts its own retries
+                    AtomicInteger retries = new AtomicInteger();
+                    return invokeWithRetry(backend, method, finalArgs, breaker, maxRetries, retries)
+                            .doOnError(err -> measureApiCall(watch, method, false, retries.get()))
+                            .doOnCompleted(() -> measureApiCall(watch, method, true, retries.get()));
+                });
             }
 
             try {
-                Object result = invoke.call();
-                if (result instanceof Observable) {
-                    result = ((Observable) result)
-                            .doOnError(err -> measureApiCall(watch, method, false))
-                            .doOnCompleted(() -> measureApiCall(watch, method, true));
-
-                } else {
-                    measureApiCall(watch, method, true);
-                }
-
+                Object result = method.invoke(backend, finalArgs);
+                measureApiCall(watch, method, true, 0);
                 return result;
+
             } catch (InvocationTargetException targetError) {
-                measureApiCall(watch, method, false);
+                measureApiCall(watch, method, false, 0);
                 throw targetError.getCause();
             }
         });
     }
 
-    private static void measureApiCall(Stopwatch watch, Method method, boolean success) {
+    private static void measureApiCall(Stopwatch watch, Method method, boolean success, int retries) {
         Stats.get().time("api.call", watch.elapsed(TimeUnit.MILLISECONDS),
                 "method:" + method.getName(),
-                "success:" + success);
+                "success:" + success,
+                "retries:" + retries);
     }
 
-    @SuppressWarnings({"unchecked", "RedundantCast"})
+    /**
+     * Invokes the method and retries it on server errors with an exponential backoff.
+     * The delays are waited for on a scheduler, so no thread is blocked. Requests fail
+     * fast while the circuit breaker of the endpoint is open. The breaker sees the
+     * outcome of the whole call, not of the single attempts.
+     */
+    @SuppressWarnings("unchecked")
     private static Observable<Object> invokeWithRetry(
             Api api, Method method, Object[] args,
-            Predicate<Throwable> shouldRetryTest, int retryCount)
-
-            throws IllegalAccessException, InvocationTargetException {
-
-        Observable<Object> result = (Observable<Object>) method.invoke(api, args);
-        for (int i = 0; i < retryCount; i++) {
-            result = result.onErrorResumeNext(err -> {
-                try {
-                    if (shouldRetryTest.apply(err)) {
-                        try {
-                            // give the server a small grace period before trying again.
-                            Uninterruptibles.sleepUninterruptibly(500, TimeUnit.MILLISECONDS);
-
-                            logger.warn("perform retry, calling method {} again", method);
-                            return (Observable<Object>) method.invoke(api, args);
-                        } catch (Exception error) {
-                            return Observable.error(error);
-                        }
-                    } else {
-                        // forward error if it is not a network problem
-                        return Observable.error(err);
-                    }
-                } catch (Throwable error) {
-                    // error while handling an error? oops!
-                    return Observable.error(error);
-                }
-            });
-        }
+            CircuitBreaker breaker, int maxRetries, AtomicInteger retries) {
 
-        return result;
+        Observable<Object> request = Observable.defer(() -> {
+            if (!breaker.allowRequest())
+                return Observable.<Object>error(new CircuitBreaker.OpenException(method.getName()));
+
+            try {
+                return (Observable<Object>) method.invoke(api, args);
+
+            } catch (InvocationTargetException error) {
+                return Observable.<Object>error(error.getCause());
+
+            } catch (Exception error) {
+                return Observable.<Object>error(error);
+            }
+        });
+
+        Observable<Object> retried = request.retryWhen(errors -> errors.flatMap(err -> {
+            if (!isHttpError(err)) {
+                // forward error if it is not a problem of the server
+                return Observable.<Long>error(err);
+            }
+
+            // a probe of an open circuit is not retried, the breaker decides about the next one.
+            if (retries.get() >= maxRetries || !breaker.isClosed()) {
+                breaker.onFailure();
+                return Observable.<Long>error(err);
+            }
+
+            int attempt = retries.incrementAndGet();
+
+            long delay = retryDelay(attempt);
+            logger.warn("perform retry {} in {}ms, calling method {} again", attempt, delay, method);
+            return Observable.timer(delay, TimeUnit.MILLISECONDS, BackgroundScheduler.instance());
+        }));
+
+        return retried.doOnCompleted(breaker::onSuccess);
     }
 
+    /**
+     * Exponential backoff with a random jitter, so that clients that failed at the
+     * same time do not hit the server at the same time again.
+     */
+    private static long retryDelay(int attempt) {
+        long delay = RETRY_BASE_DELAY_MILLIS << (attempt - 1);
+        return delay / 2 + (long) (jitter.nextDouble() * delay / 2);
+    }
 
     @SuppressLint("NewApi")
     private static boolean isHttpError(Throwable error) {
@@ -0,0 +1,94 @@
+package com.pr0gramm.app.api.pr0gramm;
+
+import android.os.SystemClock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Guards one endpoint of the api. After a few consecutive server errors the circuit
+ * opens and requests fail fast with an {@link OpenException} instead of adding to the
+ * load of an overloaded server. Once the circuit was open for a while, a single request
+ * is let through to probe the server. If the probe fails too, the circuit stays open
+ * twice as long as before. A failure is one failed call, including all of its retries.
+ */
+public final class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger("CircuitBreaker");
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long MIN_OPEN_MILLIS = 5000;
+    private static final long MAX_OPEN_MILLIS = 60000;
+
+    private final String name;
+
+    // all state is guarded by this.
+    private int failures;
+    private long openMillis = MIN_OPEN_MILLIS;
+    private long openUntil;
+    private boolean probing;
+
+    CircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Checks if a request may be performed. While the circuit is open, only one
+     * request per open period is allowed to probe the server.
+     */
+    public synchronized boolean allowRequest() {
+        if (failures < FAILURE_THRESHOLD)
+            return true;
+
+        long now = SystemClock.elapsedRealtime();
+        if (now < openUntil)
+            return false;
+
+        // let this request probe the server and block all others for another period.
+        openUntil = now + openMillis;
+        probing = true;
+        return true;
+    }
+
+    /**
+     * Returns true, if requests are let through without limits.
+     */
+    public synchronized boolean isClosed() {
+        return failures < FAILURE_THRESHOLD;
+    }
+
+    public synchronized void onSuccess() {
+        if (failures >= FAILURE_THRESHOLD) {
+            logger.info("Closing circuit for {}", name);
+        }
+
+        failures = 0;
+        openMillis = MIN_OPEN_MILLIS;
+        probing = false;
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+
+        if (failures >= FAILURE_THRESHOLD) {
+            if (probing) {
+                // the server did not recover yet, give it more time.
+                openMillis = Math.min(MAX_OPEN_MILLIS, 2 * openMillis);
+                probing = false;
+            }
+
+            logger.warn("Opening circuit for {} for {}ms after {} failures", name, openMillis, failures);
+            openUntil = SystemClock.elapsedRealtime() + openMillis;
+        }
+    }
+
+    /**
+     * Signals that a request was not performed because the circuit of its endpoint is open.
+     */
+    public static class OpenException extends IOException {
+        OpenException(String name) {
+            super("Circuit for " + name + " is open, server seems to be overloaded");
+        }
+    }
+}
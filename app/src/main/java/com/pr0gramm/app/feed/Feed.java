@@ -7,9 +7,7 @@ import com.google.common.base.Optional;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Ordering;
-import com.google.common.collect.PeekingIterator;
 import com.pr0gramm.app.api.pr0gramm.Api;
 
 import org.slf4j.Logger;
@@ -20,9 +18,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
 
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongLongHashMap;
 import rx.functions.Action1;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -41,6 +44,19 @@ public class Feed {
 
     private final List<FeedItem> items = new ArrayList<>();
 
+    // ascending sort keys of the items, see #sortKey
+    private final TLongArrayList keys = new TLongArrayList();
+
+    // maps the item id to its sort key
+    private final TLongLongMap keyById = new TLongLongHashMap();
+
+    // a status word for each item, see ItemStatusService
+    private final TIntArrayList status = new TIntArrayList();
+
+    // oldest and newest item of a feed that is not sortable
+    private FeedItem unsortedOldest;
+    private FeedItem unsortedNewest;
+
     private final FeedFilter feedFilter;
     private final ImmutableSet<ContentType> contentType;
 
@@ -64,7 +80,7 @@ public class Feed {
                 boolean atStart) {
 
         this(feedFilter, contentType);
-        this.items.addAll(items);
+        this.add(ImmutableList.copyOf(items), null);
         this.atStart = atStart;
     }
 
@@ -106,23 +122,40 @@ public class Feed {
 
     public void clear() {
         this.items.clear();
+        this.keys.clear();
+        this.keyById.clear();
+        this.status.clear();
+        this.unsortedOldest = null;
+        this.unsortedNewest = null;
+
         event(FeedListener::onRemoveItems);
     }
 
+    /**
+     * Returns the status word of the item at the given position.
+     */
+    public int status(int idx) {
+        return status.get(idx);
+    }
+
     /**
      * Merges this feed with the provided low level feed representation.
      */
     public void merge(Api.Feed feed) {
+        merge(feed, null);
+    }
+
+    /**
+     * Merges this feed with the provided low level feed representation. The status
+     * words of the new items are taken from the given map, if provided.
+     */
+    public void merge(Api.Feed feed, @Nullable TLongIntMap itemStatus) {
         checkMainThread();
 
         atEnd |= feed.isAtEnd();
         atStart |= feed.isAtStart();
 
-        List<FeedItem> newItems = add(feed);
-
-        if (!itemOrdering.isStrictlyOrdered(items)) {
-            logger.warn("Feed is not in order after merging!");
-        }
+        Update update = add(feed, itemStatus);
 
         if (feedListener != null) {
             boolean wrongContentType = feed.getError()
@@ -130,7 +163,7 @@ public class Feed {
                     .or(false);
 
             event(listener -> {
-                listener.onNewItems(newItems);
+                listener.onNewItems(update.newItems, update.inserted, update.changed);
 
                 if (wrongContentType)
                     listener.onWrongContentType();
@@ -141,50 +174,175 @@ public class Feed {
     /**
      * Adds the items from the provided feed to this instance.
      */
-    private List<FeedItem> add(Api.Feed feed) {
-        ImmutableList<FeedItem> newItems = FluentIterable.from(feed.getItems())
+    private Update add(Api.Feed feed, @Nullable TLongIntMap itemStatus) {
+        List<FeedItem> newItems = FluentIterable.from(feed.getItems())
                 .transform(FeedItem::new)
                 .toList();
 
-        // we can not merge some feeds based on their ids
+        return add(newItems, itemStatus);
+    }
+
+    /**
+     * Adds the given items to this instance. For sortable feeds, the items are merged by
+     * their ids using binary search on the sorted key list. New items are inserted as a
+     * few contiguous runs, so the backing list is shifted at most once per run.
+     */
+    private Update add(List<FeedItem> newItems, @Nullable TLongIntMap itemStatus) {
         if (!feedFilter.getFeedType().sortable()) {
-            items.addAll(newItems);
+            // we can not merge some feeds based on their ids, so just append them
+            int start = items.size();
+            for (FeedItem item : newItems) {
+                // the key is simply the position in the feed
+                long key = keys.size();
+                keys.add(key);
+                keyById.putIfAbsent(item.id(), key);
+                items.add(item);
+                status.add(statusOf(itemStatus, item));
+
+                if (unsortedOldest == null || itemOrdering.compare(item, unsortedOldest) > 0)
+                    unsortedOldest = item;
+
+                if (unsortedNewest == null || itemOrdering.compare(item, unsortedNewest) < 0)
+                    unsortedNewest = item;
+            }
+
+            return new Update(newItems,
+                    newItems.isEmpty() ? Collections.<Range>emptyList() : ImmutableList.of(new Range(start, newItems.size())),
+                    Collections.<Range>emptyList());
+        }
+
+        newItems = itemOrdering.immutableSortedCopy(newItems);
+
+        // positions of the replaced items and the insertion points
+        // relative to the current (not yet modified) list.
+        TIntList replaced = new TIntArrayList();
+        TIntList insertAt = new TIntArrayList();
+        List<FeedItem> inserts = new ArrayList<>();
+
+        long previousKey = 0;
+        for (FeedItem item : newItems) {
+            long key = sortKey(item);
+            if (!inserts.isEmpty() && key == previousKey) {
+                // duplicate item in the page, keep the last one.
+                inserts.set(inserts.size() - 1, item);
+                continue;
+            }
+
+            int pos = keys.binarySearch(key);
+            if (pos >= 0) {
+                // replace the existing item with the new one
+                items.set(pos, item);
+                status.set(pos, statusOf(itemStatus, item));
+                replaced.add(pos);
+            } else {
+                insertAt.add(-(pos + 1));
+                inserts.add(item);
+                previousKey = key;
+            }
+        }
+
+        // insert the runs back to front, so the insertion points stay valid.
+        List<Range> inserted = new ArrayList<>();
+        int runEnd = inserts.size();
+        while (runEnd > 0) {
+            int position = insertAt.get(runEnd - 1);
+            int runStart = runEnd - 1;
+            while (runStart > 0 && insertAt.get(runStart - 1) == position)
+                runStart--;
+
+            List<FeedItem> run = inserts.subList(runStart, runEnd);
+            long[] runKeys = new long[run.size()];
+            int[] runStatus = new int[run.size()];
+            for (int idx = 0; idx < runKeys.length; idx++) {
+                FeedItem item = run.get(idx);
+                runKeys[idx] = sortKey(item);
+                runStatus[idx] = statusOf(itemStatus, item);
+                keyById.put(item.id(), runKeys[idx]);
+            }
+
+            items.addAll(position, run);
+            keys.insert(position, runKeys);
+            status.insert(position, runStatus);
+
+            // the final position is shifted by all runs inserted in front of this one.
+            inserted.add(0, new Range(position + runStart, run.size()));
+            runEnd = runStart;
+        }
+
+        // move the replaced positions behind the items inserted in front of them
+        TIntList changed = new TIntArrayList(replaced.size());
+        for (int idx = 0; idx < replaced.size(); idx++) {
+            int pos = replaced.get(idx);
+            changed.add(pos + countInsertedUpTo(insertAt, pos));
+        }
+
+        return new Update(newItems, inserted, Range.of(changed));
+    }
+
+    private static int statusOf(@Nullable TLongIntMap itemStatus, FeedItem item) {
+        return itemStatus != null ? itemStatus.get(item.id()) : 0;
+    }
+
+    /**
+     * Updates the status words of the items with the given ids. The new status of
+     * an item is computed as {@code (status & ~clear) | set}. If no ids are given,
+     * all items are updated. Listeners are informed about the changed ranges.
+     */
+    public void updateStatus(@Nullable long[] itemIds, int set, int clear) {
+        checkMainThread();
 
+        TIntList changed = new TIntArrayList();
+        if (itemIds == null) {
+            for (int idx = 0; idx < status.size(); idx++) {
+                if (applyStatus(idx, set, clear))
+                    changed.add(idx);
+            }
         } else {
-            newItems = itemOrdering.immutableSortedCopy(newItems);
-
-            // merge based on ids.
-            PeekingIterator<FeedItem> source = Iterators.peekingIterator(newItems.iterator());
-            ListIterator<FeedItem> target = items.listIterator();
-
-            while (source.hasNext()) {
-                if (target.hasNext()) {
-                    FeedItem nextTarget = items.get(target.nextIndex());
-
-                    int cmp = itemOrdering.compare(source.peek(), nextTarget);
-                    if (cmp < 0) {
-                        // next target should belong behind this source item, so
-                        // put source item here.
-                        target.add(source.next());
-
-                    } else if (cmp == 0) {
-                        // replace target with new source
-                        target.next();
-                        target.set(source.next());
-
-                    } else {
-                        // don't insert here, try next target
-                        target.next();
-                    }
-
-                } else {
-                    // we have no more target elements, so just add source here.
-                    target.add(source.next());
-                }
+            for (long itemId : itemIds) {
+                Optional<Integer> idx = indexOf(itemId);
+                if (idx.isPresent() && applyStatus(idx.get(), set, clear))
+                    changed.add(idx.get());
             }
+
+            changed.sort();
         }
 
-        return newItems;
+        if (!changed.isEmpty()) {
+            List<Range> ranges = Range.of(changed);
+            event(listener -> listener.onStatusChanged(ranges));
+        }
+    }
+
+    private boolean applyStatus(int idx, int set, int clear) {
+        int previous = status.get(idx);
+        int updated = (previous & ~clear) | set;
+        status.set(idx, updated);
+        return updated != previous;
+    }
+
+    /**
+     * Counts the number of insertion points less than or equal to the given position.
+     */
+    private static int countInsertedUpTo(TIntList insertAt, int position) {
+        int lo = 0, hi = insertAt.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (insertAt.get(mid) <= position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    /**
+     * Key of the item in the sorted key list. As the feed is sorted by descending ids,
+     * we use the negated id to get an ascending key list for binary search.
+     */
+    private long sortKey(FeedItem item) {
+        return -feedTypeId(item);
     }
 
     private long feedTypeId(FeedItem item) {
@@ -203,13 +361,11 @@ public class Feed {
     }
 
     public Optional<Integer> indexOf(long itemId) {
-        for (int idx = 0; idx < items.size(); idx++) {
-            if (itemId == items.get(idx).id()) {
-                return Optional.of(idx);
-            }
-        }
+        if (!keyById.containsKey(itemId))
+            return Optional.absent();
 
-        return Optional.absent();
+        int idx = keys.binarySearch(keyById.get(itemId));
+        return idx >= 0 ? Optional.of(idx) : Optional.<Integer>absent();
     }
 
     public Bundle persist(int idx) {
@@ -242,15 +398,21 @@ public class Feed {
             .onResultOf(this::feedTypeId);
 
     public Optional<FeedItem> oldest() {
+        if (!feedFilter.getFeedType().sortable())
+            return Optional.fromNullable(unsortedOldest);
+
         return items.isEmpty()
                 ? Optional.<FeedItem>absent()
-                : Optional.of(itemOrdering.max(items));
+                : Optional.of(items.get(items.size() - 1));
     }
 
     public Optional<FeedItem> newest() {
+        if (!feedFilter.getFeedType().sortable())
+            return Optional.fromNullable(unsortedNewest);
+
         return items.isEmpty()
                 ? Optional.<FeedItem>absent()
-                : Optional.of(itemOrdering.min(items));
+                : Optional.of(items.get(0));
     }
 
     private void event(Action1<FeedListener> action) {
@@ -262,11 +424,63 @@ public class Feed {
         }
     }
 
+    /**
+     * A range of positions in the feed.
+     */
+    public static final class Range {
+        public final int start;
+        public final int count;
+
+        Range(int start, int count) {
+            this.start = start;
+            this.count = count;
+        }
+
+        /**
+         * Combines the given ascending positions into a list of ranges.
+         */
+        static List<Range> of(TIntList positions) {
+            List<Range> ranges = new ArrayList<>();
+
+            int idx = 0;
+            while (idx < positions.size()) {
+                int start = positions.get(idx);
+                int count = 1;
+                while (idx + count < positions.size() && positions.get(idx + count) == start + count)
+                    count++;
+
+                ranges.add(new Range(start, count));
+                idx += count;
+            }
+
+            return ranges;
+        }
+    }
+
+    private static final class Update {
+        final List<FeedItem> newItems;
+        final List<Range> inserted;
+        final List<Range> changed;
+
+        Update(List<FeedItem> newItems, List<Range> inserted, List<Range> changed) {
+            this.newItems = newItems;
+            this.inserted = inserted;
+            this.changed = changed;
+        }
+    }
+
     public interface FeedListener {
         /**
-         * Called after new items are added to this feed.
+         * Called after new items are added to this feed. The ranges of inserted
+         * and changed items are given in ascending order and describe positions
+         * in the feed after the merge.
+         */
+        void onNewItems(List<FeedItem> newItems, List<Range> inserted, List<Range> changed);
+
+        /**
+         * Called if the status words of some items have changed.
          */
-        void onNewItems(List<FeedItem> newItems);
+        void onStatusChanged(List<Range> changed);
 
         /**
          * Called if items are removed from the feed
@@ -0,0 +1,166 @@
+package com.pr0gramm.app.feed;
+
+import android.content.Context;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.gson.Gson;
+import com.pr0gramm.app.api.pr0gramm.Api;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Persists the last received page for every {@link FeedService.FeedQuery} on disk,
+ * so a feed can be shown directly while the real request is still running.
+ */
+@Singleton
+public class FeedCache {
+    private static final Logger logger = LoggerFactory.getLogger("FeedCache");
+
+    private static final int MAX_ENTRIES = 256;
+    private static final long MAX_AGE = TimeUnit.HOURS.toMillis(12);
+
+    private final File directory;
+    private final Gson gson;
+
+    private final Object lock = new Object();
+
+    @Inject
+    public FeedCache(Context context, Gson gson) {
+        this.directory = new File(context.getCacheDir(), "feeds");
+        this.gson = gson;
+    }
+
+    /**
+     * Checks if pages of the given query may be cached at all. We can only cache feeds
+     * that are merged by their ids, all other feeds would get duplicate items.
+     */
+    public static boolean isCacheable(FeedService.FeedQuery query) {
+        return query.feedFilter().getFeedType().sortable();
+    }
+
+    /**
+     * Returns the last page stored for the given key, if there is one and
+     * it is not too old. This method performs disk io.
+     */
+    public Optional<Api.Feed> get(String key) {
+        File file = fileOf(key);
+
+        synchronized (lock) {
+            if (!file.exists() || file.lastModified() < System.currentTimeMillis() - MAX_AGE)
+                return Optional.absent();
+
+            try (Reader reader = Files.newReader(file, Charsets.UTF_8)) {
+                return Optional.fromNullable(gson.fromJson(reader, Api.Feed.class));
+
+            } catch (Exception error) {
+                logger.warn("Could not read cached feed page, removing it", error);
+
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return Optional.absent();
+            }
+        }
+    }
+
+    /**
+     * Stores the given page for the key. Pages with errors or without any
+     * items are not stored. This method performs disk io.
+     */
+    public void put(String key, Api.Feed feed) {
+        if (feed.getError().isPresent() || feed.getItems().isEmpty())
+            return;
+
+        synchronized (lock) {
+            try {
+                if (!directory.exists() && !directory.mkdirs())
+                    throw new IOException("Could not create directory " + directory);
+
+                File file = fileOf(key);
+                File temp = new File(directory, file.getName() + ".tmp");
+                try (Writer writer = Files.newWriter(temp, Charsets.UTF_8)) {
+                    gson.toJson(feed, Api.Feed.class, writer);
+                }
+
+                if (!temp.renameTo(file))
+                    throw new IOException("Could not rename " + temp + " to " + file);
+
+                trim();
+
+            } catch (Exception error) {
+                logger.warn("Could not write feed page to cache", error);
+            }
+        }
+    }
+
+    /**
+     * Removes all cached pages.
+     */
+    public void clear() {
+        synchronized (lock) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest entries if there are more than {@link #MAX_ENTRIES} pages.
+     */
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= MAX_ENTRIES)
+            return;
+
+        Arrays.sort(files, (lhs, rhs) -> Long.compare(rhs.lastModified(), lhs.lastModified()));
+        for (int idx = MAX_ENTRIES; idx < files.length; idx++) {
+            //noinspection ResultOfMethodCallIgnored
+            files[idx].delete();
+        }
+    }
+
+    private File fileOf(String key) {
+        checkArgument(!key.isEmpty(), "Key must not be empty");
+
+        String name = Hashing.sha1().hashString(key, Charsets.UTF_8).toString();
+        return new File(directory, name + ".json");
+    }
+
+    /**
+     * Builds a normalized cache key for the given query. The extra values are
+     * parameters that are not part of the query, but change the response.
+     */
+    public static String keyOf(FeedService.FeedQuery query, Object... extra) {
+        FeedFilter filter = query.feedFilter();
+        return Joiner.on(':').useForNull("").join(
+                filter.getFeedType(),
+                filter.getTags().or("").trim().toLowerCase(),
+                filter.getLikes().or("").trim().toLowerCase(),
+                filter.getUsername().or("").trim().toLowerCase(),
+                ContentType.combine(query.contentTypes()),
+                query.older().orNull(),
+                query.newer().orNull(),
+                query.around().orNull(),
+                Joiner.on(',').useForNull("").join(extra));
+    }
+}
@@ -1,11 +1,17 @@
 package com.pr0gramm.app.feed;
 
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 
 import com.google.common.base.Optional;
 import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.services.ItemStatusService;
 import com.pr0gramm.app.util.BackgroundScheduler;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import gnu.trove.map.TLongIntMap;
 import rx.Observable;
 import rx.Subscription;
 import rx.functions.Action1;
@@ -13,17 +19,47 @@ import rx.functions.Action1;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * This class handles loading of feed data.
+ * This class handles loading of feed data. Next to the explicit
+ * {@link #next()} and {@link #previous()} calls, the loader can prefetch pages
+ * in both directions based on the current viewport, the scroll velocity and the
+ * measured latency of the previous requests, see {@link #onViewportChanged(int, int)}.
  */
 public class FeedLoader {
+    private static final Logger logger = LoggerFactory.getLogger("FeedLoader");
+
+    // always keep at least this many items between the viewport and the end of the feed.
+    private static final int MIN_DISTANCE = 12;
+
+    // never prefetch more than this many pages ahead of the viewport.
+    private static final int MAX_PREFETCH_PAGES = 3;
+
+    // weight of a new sample in the moving averages
+    private static final float SMOOTHING = 0.3f;
+
     private final FeedService feedService;
+    private final ItemStatusService itemStatusService;
     private final Feed feed;
     private final Binder binder;
 
-    private Subscription subscription;
+    private Subscription restartSubscription;
+    private Subscription nextSubscription;
+    private Subscription previousSubscription;
+
+    // last known viewport and scroll velocity in items per second.
+    private int firstVisible = -1;
+    private int lastVisible = -1;
+    private long lastViewportUpdate;
+    private float velocity;
+
+    // moving averages of the page latency in milliseconds and the page size in items.
+    private float pageLatency = 1000;
+    private float pageSize = 120;
+
+    public FeedLoader(@NonNull Binder binder, @NonNull FeedService feedService,
+                      @NonNull ItemStatusService itemStatusService, @NonNull Feed feed) {
 
-    public FeedLoader(@NonNull Binder binder, @NonNull FeedService feedService, @NonNull Feed feed) {
         this.feedService = checkNotNull(feedService, "feedService");
+        this.itemStatusService = checkNotNull(itemStatusService, "itemStatusService");
         this.feed = checkNotNull(feed, "feed");
         this.binder = checkNotNull(binder, "binder");
     }
@@ -49,7 +85,7 @@ public class FeedLoader {
                 .around(around)
                 .build());
 
-        subscribeTo(response);
+        restartSubscription = subscribeTo(response, () -> restartSubscription = null);
     }
 
     public void next() {
@@ -57,11 +93,7 @@ public class FeedLoader {
         if (feed.isAtEnd() || isLoading() || !oldest.isPresent())
             return;
 
-        subscribeTo(feedService.getFeedItems(ImmutableFeedQuery.builder()
-                .feedFilter(feed.getFeedFilter())
-                .contentTypes(feed.getContentType())
-                .older(oldest.get().id(feed.getFeedFilter().getFeedType()))
-                .build()));
+        loadNext(oldest.get());
     }
 
     public void previous() {
@@ -69,36 +101,165 @@ public class FeedLoader {
         if (feed.isAtStart() || isLoading() || !newest.isPresent())
             return;
 
-        subscribeTo(feedService.getFeedItems(ImmutableFeedQuery.builder()
+        loadPrevious(newest.get());
+    }
+
+    private void loadNext(FeedItem oldest) {
+        nextSubscription = subscribeTo(feedService.getFeedItems(ImmutableFeedQuery.builder()
+                .feedFilter(feed.getFeedFilter())
+                .contentTypes(feed.getContentType())
+                .older(oldest.id(feed.getFeedFilter().getFeedType()))
+                .build()), () -> nextSubscription = null);
+    }
+
+    private void loadPrevious(FeedItem newest) {
+        previousSubscription = subscribeTo(feedService.getFeedItems(ImmutableFeedQuery.builder()
                 .feedFilter(feed.getFeedFilter())
                 .contentTypes(feed.getContentType())
-                .newer(newest.get().id(feed.getFeedFilter().getFeedType()))
-                .build()));
+                .newer(newest.id(feed.getFeedFilter().getFeedType()))
+                .build()), () -> previousSubscription = null);
+    }
+
+    /**
+     * Informs the loader about the currently visible range of feed items. The loader
+     * measures the scroll velocity and starts loading pages in scroll direction early
+     * enough, that they should arrive before the user reaches the end of the feed.
+     */
+    public void onViewportChanged(int firstVisible, int lastVisible) {
+        long now = SystemClock.uptimeMillis();
+        if (this.firstVisible >= 0 && now > lastViewportUpdate) {
+            float seconds = (now - lastViewportUpdate) / 1000.f;
+            float sample = (firstVisible - this.firstVisible) / seconds;
+            velocity += SMOOTHING * (sample - velocity);
+        }
+
+        this.firstVisible = firstVisible;
+        this.lastVisible = lastVisible;
+        this.lastViewportUpdate = now;
+
+        prefetch();
+    }
+
+    /**
+     * Informs the loader that scrolling stopped, so the measured velocity is outdated.
+     */
+    public void onScrollIdle() {
+        velocity = 0;
+    }
+
+    /**
+     * Returns the smoothed scroll velocity in items per second. The velocity is positive
+     * while scrolling towards the end of the feed.
+     */
+    public float velocity() {
+        return velocity;
+    }
+
+    /**
+     * Starts loading the next page in each direction, if the number of
+     * items left in that direction will not last until the pending page arrives.
+     */
+    private void prefetch() {
+        if (lastVisible < 0 || restartSubscription != null || feed.size() == 0)
+            return;
+
+        if (nextSubscription == null && !feed.isAtEnd()) {
+            int remaining = feed.size() - 1 - lastVisible;
+            if (remaining < requiredDistance(Math.max(0, velocity))) {
+                Optional<FeedItem> oldest = feed.oldest();
+                if (oldest.isPresent()) {
+                    logger.info("Prefetch next page, {} items left at {} items/s", remaining, velocity);
+                    loadNext(oldest.get());
+                }
+            }
+        }
+
+        if (previousSubscription == null && !feed.isAtStart()) {
+            int remaining = firstVisible;
+            if (remaining < requiredDistance(Math.max(0, -velocity))) {
+                Optional<FeedItem> newest = feed.newest();
+                if (newest.isPresent()) {
+                    logger.info("Prefetch previous page, {} items left at {} items/s", remaining, -velocity);
+                    loadPrevious(newest.get());
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of items that need to be available in scroll direction, so that
+     * a page requested now arrives in time. Bounded by {@link #MAX_PREFETCH_PAGES}.
+     */
+    private int requiredDistance(float itemsPerSecond) {
+        float consumedWhileLoading = itemsPerSecond * pageLatency / 1000.f;
+        float maxDistance = MAX_PREFETCH_PAGES * pageSize;
+        return (int) Math.min(maxDistance, MIN_DISTANCE + consumedWhileLoading);
     }
 
     public boolean isLoading() {
-        return subscription != null;
+        return restartSubscription != null || nextSubscription != null || previousSubscription != null;
     }
 
-    private void subscribeTo(Observable<Api.Feed> response) {
-        subscription = response
+    private Subscription subscribeTo(Observable<Api.Feed> response, Runnable onTerminate) {
+        long startTime = SystemClock.uptimeMillis();
+        int sizeBefore = feed.size();
+
+        // resolve the status of the items before the page reaches the main thread.
+        return response
+                .map(page -> new Page(page, itemStatusService.resolve(page)))
                 .unsubscribeOn(BackgroundScheduler.instance())
                 .compose(binder.bind())
-                .doAfterTerminate(() -> subscription = null)
+                .doOnError(error -> onTerminate.run())
+                .doOnCompleted(() -> {
+                    onTerminate.run();
+                    updateLatency(SystemClock.uptimeMillis() - startTime);
+
+                    // continue the pipeline, if the user is still scrolling fast
+                    // and the last page actually brought some new items.
+                    if (feed.size() > sizeBefore) {
+                        prefetch();
+                    }
+                })
                 .subscribe(this::merge, binder::onError);
     }
 
-    private void merge(Api.Feed feed) {
-        this.feed.merge(feed);
+    private void updateLatency(long millis) {
+        pageLatency += SMOOTHING * (millis - pageLatency);
+    }
+
+    private void merge(Page page) {
+        int itemCount = page.feed.getItems().size();
+        if (itemCount > 0) {
+            pageSize += SMOOTHING * (itemCount - pageSize);
+        }
+
+        this.feed.merge(page.feed, page.itemStatus);
     }
 
     /**
-     * Stops all loading operations.
+     * Stops all loading operations, including the prefetching of pages.
      */
     public void stop() {
+        restartSubscription = unsubscribe(restartSubscription);
+        nextSubscription = unsubscribe(nextSubscription);
+        previousSubscription = unsubscribe(previousSubscription);
+    }
+
+    private static Subscription unsubscribe(Subscription subscription) {
         if (subscription != null) {
             subscription.unsubscribe();
-            subscription = null;
+        }
+
+        return null;
+    }
+
+    private static final class Page {
+        final Api.Feed feed;
+        final TLongIntMap itemStatus;
+
+        Page(Api.Feed feed, TLongIntMap itemStatus) {
+            this.feed = feed;
+            this.itemStatus = itemStatus;
         }
     }
 
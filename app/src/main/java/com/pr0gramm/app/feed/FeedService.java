@@ -1,23 +1,34 @@
 package com.pr0gramm.app.feed;
 
+import android.content.Context;
+
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.pr0gramm.app.Settings;
 import com.pr0gramm.app.api.categories.ExtraCategoryApi;
 import com.pr0gramm.app.api.categories.ExtraCategoryApiProvider;
 import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.api.pr0gramm.LoginCookieHandler;
 import com.pr0gramm.app.services.Track;
+import com.pr0gramm.app.services.preloading.OfflineStore;
+import com.pr0gramm.app.util.AndroidUtility;
+import com.pr0gramm.app.util.BackgroundScheduler;
 
 import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Func0;
 
 /**
  * Performs the actual request to get the items for a feed.
@@ -29,15 +40,75 @@ public class FeedService {
     private final Api mainApi;
     private final ExtraCategoryApi categoryApi;
     private final Settings settings;
+    private final FeedCache feedCache;
+    private final LoginCookieHandler cookieHandler;
+    private final OfflineStore offlineStore;
+    private final Context context;
+
+    private final ConcurrentMap<String, Observable<?>> inFlight = new ConcurrentHashMap<>();
 
     @Inject
-    public FeedService(Api mainApi, ExtraCategoryApiProvider categoryApi, Settings settings) {
+    public FeedService(Api mainApi, ExtraCategoryApiProvider categoryApi, Settings settings,
+                       FeedCache feedCache, LoginCookieHandler cookieHandler,
+                       OfflineStore offlineStore, Context context) {
+
         this.mainApi = mainApi;
         this.categoryApi = categoryApi.get();
         this.settings = settings;
+        this.feedCache = feedCache;
+        this.cookieHandler = cookieHandler;
+        this.offlineStore = offlineStore;
+        this.context = context;
     }
 
+    /**
+     * Gets the items for the given query. Without a network connection, the items are
+     * served from the {@link OfflineStore} if the feed was preloaded. Otherwise, if there
+     * is a cached page for this query, it is emitted first, followed by the fresh page
+     * from the api.
+     */
     public Observable<Api.Feed> getFeedItems(FeedQuery query) {
+        if (!AndroidUtility.isOffline(context))
+            return onlineFeedItems(query);
+
+        return Observable.fromCallable(() -> offlineStore.feed(query))
+                .subscribeOn(BackgroundScheduler.instance())
+                .flatMap(feed -> {
+                    if (!feed.isPresent())
+                        return onlineFeedItems(query);
+
+                    logger.info("Using preloaded feed for query {}", query);
+                    return Observable.just(feed.get());
+                });
+    }
+
+    private Observable<Api.Feed> onlineFeedItems(FeedQuery query) {
+        // the account is part of the key, some feeds and flags depend on it.
+        String key = FeedCache.keyOf(query, settings.bestOfBenisThreshold(), currentUser());
+        if (!FeedCache.isCacheable(query))
+            return coalesce("feed:" + key, () -> requestFeedItems(query));
+
+        Observable<Api.Feed> cached = Observable
+                .fromCallable(() -> feedCache.get(key))
+                .subscribeOn(BackgroundScheduler.instance())
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .doOnNext(feed -> logger.info("Using cached page for feed query {}", key))
+                .onErrorResumeNext(Observable.<Api.Feed>empty());
+
+        Observable<Api.Feed> fresh = coalesce("feed:" + key, () -> requestFeedItems(query)
+                .observeOn(BackgroundScheduler.instance())
+                .doOnNext(feed -> feedCache.put(key, feed)));
+
+        return cached.concatWith(fresh);
+    }
+
+    private String currentUser() {
+        LoginCookieHandler.Cookie cookie = cookieHandler.getCookie().orNull();
+        return cookie != null ? cookie.n : null;
+    }
+
+    private Observable<Api.Feed> requestFeedItems(FeedQuery query) {
         FeedFilter feedFilter = query.feedFilter();
         Track.requestFeed(feedFilter.getFeedType());
 
@@ -71,8 +142,52 @@ public class FeedService {
         }
     }
 
+    /**
+     * Loads tags and comments of a post. Without a network connection,
+     * the details of a preloaded post are served from the {@link OfflineStore}.
+     */
     public Observable<Api.Post> loadPostDetails(long id) {
-        return mainApi.info(id);
+        if (!AndroidUtility.isOffline(context))
+            return coalesce("post:" + id, () -> mainApi.info(id));
+
+        return Observable.fromCallable(() -> offlineStore.post(id))
+                .subscribeOn(BackgroundScheduler.instance())
+                .flatMap(post -> {
+                    if (!post.isPresent())
+                        return coalesce("post:" + id, () -> mainApi.info(id));
+
+                    return Observable.just(post.get());
+                });
+    }
+
+    /**
+     * Shares one in-flight request between all subscribers that ask for the same key
+     * at the same time. The request is only cancelled once all of its subscribers have
+     * unsubscribed. Once the request has finished, the next subscriber starts a new one.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Observable<T> coalesce(String key, Func0<Observable<T>> request) {
+        return Observable.defer(() -> {
+            Observable<T> shared = (Observable<T>) inFlight.get(key);
+            if (shared != null) {
+                logger.info("Joining in-flight request for {}", key);
+                return shared;
+            }
+
+            AtomicReference<Observable<T>> self = new AtomicReference<>();
+            Action0 remove = () -> inFlight.remove(key, self.get());
+
+            // replay the response, so that subscribers joining after the
+            // item was emitted but before the entry was removed still get it.
+            self.set(request.call()
+                    .doOnTerminate(remove)
+                    .doOnUnsubscribe(remove)
+                    .replay(1)
+                    .refCount());
+
+            Observable<?> previous = inFlight.putIfAbsent(key, self.get());
+            return previous != null ? (Observable<T>) previous : self.get();
+        });
     }
 
     @Value.Immutable
@@ -0,0 +1,132 @@
+package com.pr0gramm.app.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Shares the available bandwidth between all running downloads. Every download registers a
+ * {@link Transfer} and calls {@link Transfer#awaitTurn()} before it reads the next chunk.
+ * Only the {@link #MAX_ACTIVE} transfers with the highest priority may read, all others
+ * pause at their next chunk until a more important transfer finishes. This way a
+ * download in a lower lane is preempted as soon as the visible media needs bandwidth.
+ */
+@Singleton
+public class DownloadScheduler {
+    private static final Logger logger = LoggerFactory.getLogger("DownloadScheduler");
+
+    private static final int MAX_ACTIVE = 3;
+
+    /**
+     * The priority lanes, most important first.
+     */
+    public enum Priority {
+        VISIBLE, PREFETCH, PRELOAD
+    }
+
+    // all registered transfers, guarded by this.
+    private final List<Transfer> transfers = new ArrayList<>();
+    private long sequence;
+
+    @Inject
+    public DownloadScheduler() {
+    }
+
+    /**
+     * Registers a new transfer with the given priority. The transfer
+     * must be closed once the download is finished or cancelled.
+     */
+    public synchronized Transfer register(Priority priority) {
+        Transfer transfer = new Transfer(sequence++, priority);
+        transfers.add(transfer);
+        return transfer;
+    }
+
+    /**
+     * Checks if the given transfer is one of the {@link #MAX_ACTIVE} most important
+     * transfers. Transfers with the same priority are ordered by their registration.
+     */
+    private boolean mayRun(Transfer transfer) {
+        int ahead = 0;
+        for (Transfer other : transfers) {
+            if (other.isBefore(transfer)) {
+                ahead++;
+            }
+        }
+
+        return ahead < MAX_ACTIVE;
+    }
+
+    public final class Transfer implements Closeable {
+        private final long order;
+        private Priority priority;
+        private boolean closed;
+        private boolean paused;
+
+        private Transfer(long order, Priority priority) {
+            this.order = order;
+            this.priority = priority;
+        }
+
+        /**
+         * Raises the priority of this transfer. A lower priority is ignored.
+         */
+        public void raise(Priority priority) {
+            synchronized (DownloadScheduler.this) {
+                if (priority.compareTo(this.priority) < 0) {
+                    this.priority = priority;
+                    DownloadScheduler.this.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Blocks until this transfer is allowed to read the next chunk.
+         * Returns directly, if the transfer was closed in the meantime.
+         */
+        public void awaitTurn() throws InterruptedIOException {
+            synchronized (DownloadScheduler.this) {
+                while (!closed && !mayRun(this)) {
+                    if (!paused) {
+                        logger.info("Pausing transfer {} in lane {}", order, priority);
+                        paused = true;
+                    }
+
+                    try {
+                        DownloadScheduler.this.wait();
+                    } catch (InterruptedException err) {
+                        throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                    }
+                }
+
+                if (paused) {
+                    logger.info("Resuming transfer {} in lane {}", order, priority);
+                    paused = false;
+                }
+            }
+        }
+
+        private boolean isBefore(Transfer other) {
+            int cmp = priority.compareTo(other.priority);
+            return cmp < 0 || cmp == 0 && order < other.order;
+        }
+
+        @Override
+        public void close() {
+            synchronized (DownloadScheduler.this) {
+                if (!closed) {
+                    closed = true;
+                    transfers.remove(this);
+                    DownloadScheduler.this.notifyAll();
+                }
+            }
+        }
+    }
+}
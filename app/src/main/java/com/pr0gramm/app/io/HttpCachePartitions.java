@@ -0,0 +1,163 @@
+package com.pr0gramm.app.io;
+
+import android.content.Context;
+
+import com.google.common.io.Files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Splits the http disk cache into partitions with their own budget, so that large
+ * media files can not evict the thumbnails or api responses. Every partition has its
+ * own client that shares everything but the cache with the original client. Callers
+ * either use the client of their partition directly or let this factory pick the
+ * client by the host of the request.
+ * <p>
+ * Videos are kept in the {@link MediaCache}, so they are never stored in the http cache.
+ */
+public final class HttpCachePartitions implements Call.Factory {
+    private static final Logger logger = LoggerFactory.getLogger("HttpCachePartitions");
+
+    private static final long LOG_STATS_EVERY = 100;
+
+    public enum Partition {
+        THUMBNAILS("thumbnails", 48 * 1024 * 1024),
+        MEDIA("media", 128 * 1024 * 1024),
+        API("api", 16 * 1024 * 1024);
+
+        final String directory;
+        final long maxSize;
+
+        Partition(String directory, long maxSize) {
+            this.directory = directory;
+            this.maxSize = maxSize;
+        }
+    }
+
+    private final Map<Partition, Cache> caches = new EnumMap<>(Partition.class);
+    private final Map<Partition, OkHttpClient> clients = new EnumMap<>(Partition.class);
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private HttpCachePartitions(File cacheDir, OkHttpClient client) {
+        checkArgument(client.cache() == null, "Client must not have a cache");
+
+        for (Partition partition : Partition.values()) {
+            Cache cache = new Cache(new File(cacheDir, partition.directory), partition.maxSize);
+            caches.put(partition, cache);
+
+            OkHttpClient.Builder builder = client.newBuilder().cache(cache);
+            if (partition == Partition.MEDIA) {
+                builder.addNetworkInterceptor(HttpCachePartitions::doNotStoreVideos);
+            }
+
+            clients.put(partition, builder.build());
+        }
+    }
+
+    /**
+     * Returns the client that caches its responses in the given partition.
+     */
+    public OkHttpClient client(Partition partition) {
+        return clients.get(partition);
+    }
+
+    /**
+     * Creates the call using the client of the partition the requested host belongs to.
+     */
+    @Override
+    public Call newCall(Request request) {
+        if (requestCount.incrementAndGet() % LOG_STATS_EVERY == 0) {
+            logStats();
+        }
+
+        return client(partitionOf(request.url())).newCall(request);
+    }
+
+    /**
+     * Logs size and hit ratio of every partition.
+     */
+    public void logStats() {
+        for (Partition partition : Partition.values()) {
+            Cache cache = caches.get(partition);
+
+            try {
+                int requests = cache.requestCount();
+                float hitRatio = requests > 0 ? cache.hitCount() / (float) requests : 0;
+                logger.info("Partition {} uses {}kb of {}kb, hit ratio is {} of {} requests",
+                        partition, cache.size() / 1024, cache.maxSize() / 1024,
+                        String.format("%1.2f", hitRatio), requests);
+
+            } catch (IOException error) {
+                logger.warn("Could not get size of partition {}", partition);
+            }
+        }
+    }
+
+    static Partition partitionOf(HttpUrl url) {
+        String host = url.host();
+        if (host.equals("thumb.pr0gramm.com"))
+            return Partition.THUMBNAILS;
+
+        if (host.equals("pr0gramm.com") || host.equals("www.pr0gramm.com"))
+            return Partition.API;
+
+        return Partition.MEDIA;
+    }
+
+    private static Response doNotStoreVideos(Interceptor.Chain chain) throws IOException {
+        Response response = chain.proceed(chain.request());
+
+        String contentType = response.header("Content-Type");
+        if (contentType != null && contentType.startsWith("video/")) {
+            return response.newBuilder()
+                    .header("Cache-Control", "no-store")
+                    .build();
+        }
+
+        return response;
+    }
+
+    /**
+     * Creates the partitions for the given client. The client itself must not have a cache.
+     */
+    public static HttpCachePartitions create(Context context, OkHttpClient client) {
+        deleteLegacyCache(new File(context.getCacheDir(), "imgCache"));
+
+        File cacheDir = new File(context.getCacheDir(), "httpCache");
+        return new HttpCachePartitions(cacheDir, client);
+    }
+
+    /**
+     * Removes the cache directory that was shared by all requests before.
+     */
+    private static void deleteLegacyCache(File directory) {
+        if (!directory.exists())
+            return;
+
+        new Thread(() -> {
+            logger.info("Removing legacy http cache at {}", directory);
+            for (File file : Files.fileTreeTraverser().postOrderTraversal(directory)) {
+                if (!file.delete()) {
+                    logger.warn("Could not delete {}", file);
+                }
+            }
+        }, "DeleteLegacyHttpCache").start();
+    }
+}
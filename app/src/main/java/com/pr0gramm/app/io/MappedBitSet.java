@@ -0,0 +1,148 @@
+package com.pr0gramm.app.io;
+
+import android.annotation.SuppressLint;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A bit set that is backed by a file. The file is mapped into memory in segments of
+ * {@link #SEGMENT_SIZE} bytes. A segment is only mapped when it is first touched and the
+ * file only grows up to the last segment that was written to. Segments in between that
+ * were never written to stay holes in the (sparse) file and do not take up disk space.
+ *
+ * <p>The layout is the same as a plain bitmap: bit {@code n} is stored in
+ * byte {@code n / 8} with mask {@code 1 << (7 - n % 8)}.
+ *
+ * <p>Reading does not take any locks once the segment is mapped. Writes are serialized.
+ */
+public class MappedBitSet implements Closeable {
+    public static final int SEGMENT_SIZE = 64 * 1024;
+
+    private static final long BITS_PER_SEGMENT = SEGMENT_SIZE * 8L;
+
+    private final File path;
+    private final Object lock = new Object();
+
+    // replaced by clear(), only accessed while holding the lock.
+    private RandomAccessFile file;
+
+    // copy on write array of the mapped segments. Elements might be null.
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+
+    public MappedBitSet(File file) throws IOException {
+        this.path = file;
+        this.file = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Checks if the given bit is set.
+     */
+    public boolean get(long index) throws IOException {
+        if (index < 0)
+            return false;
+
+        ByteBuffer segment = segment(index / BITS_PER_SEGMENT, false);
+        if (segment == null)
+            return false;
+
+        int bit = (int) (index % BITS_PER_SEGMENT);
+        return (segment.get(bit >>> 3) & mask(bit)) != 0;
+    }
+
+    /**
+     * Sets the given bit. This grows the file if needed.
+     */
+    public void set(long index) throws IOException {
+        checkArgument(index >= 0, "Index must not be negative");
+
+        synchronized (lock) {
+            ByteBuffer segment = segment(index / BITS_PER_SEGMENT, true);
+
+            int bit = (int) (index % BITS_PER_SEGMENT);
+            segment.put(bit >>> 3, (byte) (segment.get(bit >>> 3) | mask(bit)));
+        }
+    }
+
+    /**
+     * Clears all bits. The mapped segments are dropped and the file is replaced by an
+     * empty one, so a cleared set takes up no disk space. The old file is not truncated,
+     * as a reader that still holds one of its segments would crash on access.
+     */
+    public void clear() throws IOException {
+        synchronized (lock) {
+            segments = new ByteBuffer[0];
+
+            if (!path.delete())
+                throw new IOException("Could not delete " + path);
+
+            RandomAccessFile previous = file;
+            file = new RandomAccessFile(path, "rw");
+            previous.close();
+        }
+    }
+
+    /**
+     * Returns the number of bytes the file currently spans.
+     */
+    public long length() throws IOException {
+        synchronized (lock) {
+            return file.length();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            segments = new ByteBuffer[0];
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the mapped segment with the given index. If the segment was not yet mapped,
+     * it will be mapped now. A segment that lies behind the end of the file is only mapped
+     * (and the file grown) if create is true, otherwise null is returned.
+     */
+    @SuppressLint("NewApi")
+    private ByteBuffer segment(long segmentIndex, boolean create) throws IOException {
+        checkArgument(segmentIndex < Integer.MAX_VALUE, "Segment index too large");
+
+        int idx = (int) segmentIndex;
+
+        // fast path without locking
+        ByteBuffer[] segments = this.segments;
+        if (idx < segments.length && segments[idx] != null)
+            return segments[idx];
+
+        synchronized (lock) {
+            segments = this.segments;
+            if (idx < segments.length && segments[idx] != null)
+                return segments[idx];
+
+            long offset = segmentIndex * SEGMENT_SIZE;
+            if (!create && offset >= file.length())
+                return null;
+
+            // mapping a region behind the end of the file grows the file.
+            ByteBuffer segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, SEGMENT_SIZE);
+
+            ByteBuffer[] copy = Arrays.copyOf(segments, Math.max(segments.length, idx + 1));
+            copy[idx] = segment;
+            this.segments = copy;
+
+            return segment;
+        }
+    }
+
+    private static int mask(int bit) {
+        return 1 << (7 - (bit & 7));
+    }
+}
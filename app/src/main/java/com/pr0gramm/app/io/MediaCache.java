@@ -0,0 +1,792 @@
+package com.pr0gramm.app.io;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A size bounded store for media files on disk. Files are keyed by a hash of their url.
+ * Each url is only downloaded once, even if multiple readers request it at the same time.
+ * Readers can read the bytes that were already written while the download is still running.
+ *
+ * <p>If the store grows larger than {@link #MAX_SIZE}, the least recently used files
+ * that are currently not open are removed.
+ *
+ * <p>Downloads share the bandwidth using the {@link DownloadScheduler}. The priority of a
+ * download is the highest priority any reader requested it with.
+ */
+@Singleton
+public class MediaCache {
+    private static final Logger logger = LoggerFactory.getLogger("MediaCache");
+
+    private static final long MAX_SIZE = 256L * 1024 * 1024;
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-\\d+/(\\d+|\\*)");
+
+    // partial files that were not resumed for this long are removed.
+    private static final long PARTIAL_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private final File directory;
+    private final OkHttpClient okHttpClient;
+    private final DownloadScheduler downloadScheduler;
+    private final ExecutorService executor;
+
+    // items that are currently open or being downloaded, guarded by itself.
+    private final Map<String, Item> items = new HashMap<>();
+
+    // the item that last started a download for a key, guarded by the items map.
+    private final Map<String, Item> downloads = new HashMap<>();
+
+    @Inject
+    public MediaCache(Context context, OkHttpClient okHttpClient, DownloadScheduler downloadScheduler) {
+        this.directory = new File(context.getCacheDir(), "media");
+        this.okHttpClient = okHttpClient;
+        this.downloadScheduler = downloadScheduler;
+
+        this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("MediaCache-%d")
+                .setDaemon(true)
+                .build());
+
+        // remove the leftovers of downloads that were not resumed for a long time.
+        executor.submit(this::removeStalePartialFiles);
+    }
+
+    /**
+     * Opens the entry for the given uri with the priority of visible media.
+     */
+    public Entry get(Uri uri) {
+        return get(uri, DownloadScheduler.Priority.VISIBLE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens the entry for the given uri. If the file is not yet in the store, it will
+     * be downloaded in the background. The download pauses after <code>limit</code> bytes,
+     * until some other reader requests more of the file. The returned entry must be
+     * closed after use.
+     */
+    public Entry get(Uri uri, DownloadScheduler.Priority priority, long limit) {
+        String url = uri.toString();
+        String key = keyOf(url);
+
+        synchronized (items) {
+            Item item = items.get(key);
+            if (item == null || item.error != null) {
+                item = new Item(key, url, priority, limit);
+                items.put(key, item);
+
+                if (item.file.exists()) {
+                    item.markCached();
+                } else {
+                    // register now, so the download is ranked while it waits for a thread.
+                    item.transfer = downloadScheduler.register(priority);
+                    item.previous = downloads.put(key, item);
+                    executor.submit(item::download);
+                }
+
+            } else if (!item.done) {
+                item.raise(priority, limit);
+            }
+
+            item.refCount++;
+            return new Entry(item);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the given uri that are already stored, without
+     * opening an entry or starting a download.
+     */
+    public long cachedSize(Uri uri) {
+        String key = keyOf(uri.toString());
+
+        synchronized (items) {
+            Item item = items.get(key);
+            if (item != null)
+                return item.written;
+
+            File file = new File(directory, key);
+            return file.exists() ? file.length() : 0;
+        }
+    }
+
+    private static String keyOf(String url) {
+        return Hashing.sha1().hashString(url, Charsets.UTF_8).toString();
+    }
+
+    /**
+     * Releases one reference of the item. If it was the last one,
+     * a running download is stopped.
+     */
+    private void release(Item item) {
+        synchronized (items) {
+            checkState(item.refCount > 0, "Item was already released");
+            if (--item.refCount > 0)
+                return;
+
+            if (items.get(item.key) == item)
+                items.remove(item.key);
+        }
+
+        if (!item.done) {
+            logger.info("Stop download of {}, nobody needs it anymore", item.url);
+            item.cancel();
+        }
+    }
+
+    /**
+     * Removes the least recently used files until the store fits into {@link #MAX_SIZE}.
+     * Partial files count towards the size of the store too.
+     */
+    private synchronized void trim() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        Arrays.sort(files, (lhs, rhs) -> Long.compare(rhs.lastModified(), lhs.lastModified()));
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+            if (size > MAX_SIZE) {
+                // check and delete under the lock, so nobody opens the file in between.
+                synchronized (items) {
+                    if (isInUse(file))
+                        continue;
+
+                    logger.info("Removing {} from media cache", file.getName());
+
+                    size -= file.length();
+                    if (!file.delete()) {
+                        logger.warn("Could not remove file {}", file);
+                    }
+                }
+            }
+        }
+    }
+
+    private void removeStalePartialFiles() {
+        File[] files = directory.listFiles(file -> file.getName().endsWith(PARTIAL_SUFFIX));
+        if (files == null)
+            return;
+
+        long threshold = System.currentTimeMillis() - PARTIAL_MAX_AGE;
+        for (File file : files) {
+            synchronized (items) {
+                if (file.lastModified() < threshold && !isInUse(file) && !file.delete()) {
+                    logger.warn("Could not remove partial file {}", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the file belongs to an open item or a running download.
+     * Must be called while holding the lock on the items map.
+     */
+    private boolean isInUse(File file) {
+        String key = file.getName();
+        if (key.endsWith(PARTIAL_SUFFIX)) {
+            key = key.substring(0, key.length() - PARTIAL_SUFFIX.length());
+        }
+
+        Item download = downloads.get(key);
+        return items.containsKey(key) || (download != null && !download.done);
+    }
+
+    /**
+     * A handle to one file in the store. The file stays in the store at least until
+     * this entry and all streams opened from it are closed.
+     */
+    public final class Entry implements Closeable {
+        private final Item item;
+        private boolean closed;
+
+        @Nullable
+        private Runnable writeListener;
+
+        private Entry(Item item) {
+            this.item = item;
+        }
+
+        /**
+         * Returns the total size of the file. Waits until the size is known.
+         * Returns -1, if the server did not send a content length.
+         */
+        public long totalSize() throws IOException {
+            return item.awaitHeaders();
+        }
+
+        /**
+         * Returns the number of bytes that are already stored.
+         */
+        public long cachedSize() {
+            return item.written;
+        }
+
+        /**
+         * Sets a listener that is called on the downloading thread each time new bytes
+         * are stored or the download finishes. The listener must not block. It is
+         * removed when the entry is closed.
+         */
+        public synchronized void setWriteListener(@Nullable Runnable listener) {
+            if (writeListener != null) {
+                item.listeners.remove(writeListener);
+            }
+
+            writeListener = closed ? null : listener;
+            if (writeListener != null) {
+                item.listeners.add(writeListener);
+            }
+        }
+
+        /**
+         * Returns the fraction of the file that is already stored, or -1, if unknown.
+         */
+        public float fractionCached() {
+            long length = item.length;
+            return length > 0 ? item.written / (float) length : (item.done ? 1 : -1);
+        }
+
+        /**
+         * Waits until the file is completely stored. Returns false if the timeout
+         * elapsed before that. Throws the error of the download, if it failed.
+         */
+        public boolean awaitCompletion(long timeout, TimeUnit unit) throws IOException {
+            return item.awaitCompletion(unit.toMillis(timeout));
+        }
+
+        /**
+         * Waits until the file is completely stored and returns it. The file
+         * must not be used after the entry was closed.
+         */
+        public File file() throws IOException {
+            item.awaitCompletion(0);
+            return item.file;
+        }
+
+        /**
+         * Returns true, if the download is finished, successfully or not.
+         */
+        public boolean isDone() {
+            return item.done;
+        }
+
+        /**
+         * Throws the error of the download, if it failed.
+         */
+        public void checkError() throws IOException {
+            item.checkError();
+        }
+
+        /**
+         * Opens a channel to the stored file without blocking. Only the first
+         * {@link #cachedSize()} bytes of the channel are valid. The channel must only be
+         * used while the entry is open. This must only be called after the
+         * headers were received, see {@link #totalSize()}.
+         */
+        public FileChannel openChannel() throws IOException {
+            checkState(!closed, "Entry is already closed");
+            return item.open().getChannel();
+        }
+
+        /**
+         * Opens a stream starting at the given position. Reading blocks until the data
+         * is available. The stream holds its own reference to the file.
+         */
+        public InputStream inputStreamAt(long position) {
+            checkArgument(position >= 0, "Position must not be negative");
+            checkState(!closed, "Entry is already closed");
+
+            synchronized (items) {
+                item.refCount++;
+            }
+
+            return new ItemInputStream(item, position);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                setWriteListener(null);
+                release(item);
+            }
+        }
+    }
+
+    private final class Item {
+        final String key;
+        final String url;
+        final File file;
+        final File partial;
+
+        // readers wait on this object if they need more data
+        final Object signal = new Object();
+
+        // number of threads waiting on the signal. Readers that find their data already
+        // written never take the lock, and the writer only takes it if someone waits.
+        volatile int waiting;
+
+        // listeners of open entries that are called on every write
+        final Set<Runnable> listeners = new CopyOnWriteArraySet<>();
+
+        // the number of references, guarded by the items map.
+        int refCount;
+
+        volatile long length = -1;
+        volatile long written;
+        volatile boolean headersReceived;
+        volatile boolean done;
+        volatile boolean cancelled;
+        volatile IOException error;
+        volatile Call call;
+
+        // only set while the file is downloaded
+        volatile DownloadScheduler.Transfer transfer;
+
+        // a previous download of the same url that might still write the partial file
+        Item previous;
+
+        // the download pauses, once this many bytes are written.
+        volatile DownloadScheduler.Priority priority;
+        volatile long limit;
+
+        Item(String key, String url, DownloadScheduler.Priority priority, long limit) {
+            this.key = key;
+            this.url = url;
+            this.priority = priority;
+            this.limit = limit;
+            this.file = new File(directory, key);
+            this.partial = new File(directory, key + PARTIAL_SUFFIX);
+        }
+
+        void markCached() {
+            length = written = file.length();
+            headersReceived = done = true;
+
+            // update access time for the lru order.
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                logger.warn("Could not update access time of {}", file);
+            }
+        }
+
+        void download() {
+            boolean discardPartial = false;
+
+            try {
+                logger.info("Downloading {} into media cache", url);
+
+                if (!directory.exists() && !directory.mkdirs())
+                    throw new IOException("Could not create directory " + directory);
+
+                // a cancelled download of the same url must stop writing the partial file first.
+                if (previous != null) {
+                    previous.await(() -> previous.done, 0);
+                    previous = null;
+                }
+
+                try (RandomAccessFile output = new RandomAccessFile(partial, "rw")) {
+                    written = output.length();
+                    if (written > 0) {
+                        logger.info("Resuming download of {} at {}kb", url, written / 1024);
+                    }
+
+                    while (!downloadRange(output)) {
+                        // nobody needs more right now. The response was closed, so we do not
+                        // keep an idle connection open. Leave the scheduler while we wait,
+                        // so we do not take the place of other downloads.
+                        logger.info("Pausing download of {} at {}kb", url, written / 1024);
+                        transfer.close();
+
+                        await(() -> written < limit || cancelled, 0);
+                        if (cancelled)
+                            throw new InterruptedIOException("Download was cancelled");
+
+                        transfer = downloadScheduler.register(priority);
+                    }
+                }
+
+                if (length >= 0 && written != length) {
+                    discardPartial = true;
+                    throw new IOException("Download incomplete: " + written + " of " + length);
+                }
+
+                // readers open the file under this lock, so they do not miss the rename.
+                synchronized (signal) {
+                    if (!partial.renameTo(file))
+                        throw new IOException("Could not rename " + partial + " to " + file);
+
+                    length = written;
+                    done = true;
+                }
+
+                logger.info("Finished download of {}, {}kb", url, written / 1024);
+
+            } catch (InvalidRangeException err) {
+                logger.info("Could not resume download of {}: {}", url, err.toString());
+                error = err;
+                discardPartial = true;
+
+            } catch (IOException err) {
+                // keep the partial file, the next download of the url resumes it.
+                logger.info("Could not download {} into media cache: {}", url, err.toString());
+                error = err;
+
+            } catch (RuntimeException err) {
+                logger.warn("Error during download of {}", url, err);
+                error = new IOException(err);
+
+            } finally {
+                transfer.close();
+
+                if ((discardPartial || partial.length() == 0) && partial.exists() && !partial.delete())
+                    logger.warn("Could not remove partial file {}", partial);
+
+                headersReceived = true;
+                done = true;
+                notifyReaders();
+
+                synchronized (items) {
+                    if (downloads.get(key) == this)
+                        downloads.remove(key);
+                }
+            }
+
+            trim();
+        }
+
+        /**
+         * Requests the file from the current position on and writes it to the output
+         * until the end of the file or the limit is reached. Returns true, if the end
+         * of the file was reached. The response is closed in any case.
+         */
+        private boolean downloadRange(RandomAccessFile output) throws IOException {
+            // pause here, if more important downloads need the bandwidth.
+            transfer.awaitTurn();
+
+            Request.Builder request = new Request.Builder().url(url);
+            if (written > 0) {
+                request.header("Range", "bytes=" + written + "-");
+            }
+
+            call = okHttpClient.newCall(request.build());
+            if (cancelled)
+                throw new InterruptedIOException("Download was cancelled");
+
+            Response response = call.execute();
+            try (ResponseBody body = response.body()) {
+                if (written > 0 && response.code() == 206) {
+                    long total = rangeTotal(response, written);
+                    length = total >= 0 ? total
+                            : (body.contentLength() >= 0 ? written + body.contentLength() : -1);
+
+                } else if (written > 0 && response.code() == 416) {
+                    throw new InvalidRangeException("Server rejected range starting at " + written);
+
+                } else if (response.isSuccessful()) {
+                    if (written > 0) {
+                        logger.info("Server does not support ranges, restarting download of {}", url);
+                        output.setLength(0);
+                        written = 0;
+                    }
+
+                    length = body.contentLength();
+
+                } else {
+                    throw new IOException(String.format("Server responded with %d '%s'",
+                            response.code(), response.message()));
+                }
+
+                output.seek(written);
+
+                headersReceived = true;
+                notifyReaders();
+
+                InputStream input = body.byteStream();
+                byte[] buffer = new byte[64 * 1024];
+                while (written < limit) {
+                    transfer.awaitTurn();
+
+                    int count = input.read(buffer);
+                    if (count < 0)
+                        return true;
+
+                    if (cancelled)
+                        throw new InterruptedIOException("Download was cancelled");
+
+                    output.write(buffer, 0, count);
+
+                    written += count;
+                    notifyReaders();
+                }
+
+                // we have everything, even if the limit was hit exactly at the end.
+                return length >= 0 && written >= length;
+            }
+        }
+
+        /**
+         * Raises priority and limit of the download to the given values.
+         * Must be called while holding the lock on the items map.
+         */
+        void raise(DownloadScheduler.Priority priority, long limit) {
+            if (priority.compareTo(this.priority) < 0) {
+                this.priority = priority;
+            }
+
+            DownloadScheduler.Transfer transfer = this.transfer;
+            if (transfer != null) {
+                transfer.raise(priority);
+            }
+
+            if (limit > this.limit) {
+                this.limit = limit;
+                notifyReaders();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+
+            // wake up the download, if it is waiting for its turn or a higher limit.
+            DownloadScheduler.Transfer transfer = this.transfer;
+            if (transfer != null) {
+                transfer.close();
+            }
+
+            notifyReaders();
+
+            Call call = this.call;
+            if (call != null) {
+                call.cancel();
+            }
+        }
+
+        long awaitHeaders() throws IOException {
+            await(() -> headersReceived, 0);
+            checkError();
+            return length >= 0 ? length : (done ? written : -1);
+        }
+
+        boolean awaitCompletion(long timeoutMillis) throws IOException {
+            boolean completed = await(() -> done, timeoutMillis);
+            checkError();
+            return completed;
+        }
+
+        /**
+         * Waits until there are bytes behind the given position or the end of the file
+         * was reached and returns the number of bytes that are available. Throws the
+         * error of the download, if the reader reached the end of the written data.
+         */
+        long awaitData(long position) throws IOException {
+            await(() -> written > position || done, 0);
+
+            long available = written;
+            if (available <= position)
+                checkError();
+
+            return available;
+        }
+
+        /**
+         * Opens the file for reading, the partial one, if the download is still running.
+         */
+        RandomAccessFile open() throws IOException {
+            synchronized (signal) {
+                return new RandomAccessFile(done ? file : partial, "r");
+            }
+        }
+
+        private boolean await(Condition condition, long timeoutMillis) throws IOException {
+            if (condition.satisfied())
+                return true;
+
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+
+            synchronized (signal) {
+                // announce the waiter before checking the condition again, so the
+                // writer either sees the waiter or we see the writers update.
+                waiting++;
+                try {
+                    while (!condition.satisfied()) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (timeoutMillis > 0 && remaining <= 0)
+                            return false;
+
+                        signal.wait(timeoutMillis > 0 ? remaining : 0);
+                    }
+
+                } catch (InterruptedException err) {
+                    throw new InterruptedIOException("Got interrupted while waiting for data");
+
+                } finally {
+                    waiting--;
+                }
+            }
+
+            return true;
+        }
+
+        private void checkError() throws IOException {
+            if (error != null) {
+                throw new IOException("Could not download " + url, error);
+            }
+        }
+
+        private void notifyReaders() {
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+
+            if (waiting == 0)
+                return;
+
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean satisfied();
+    }
+
+    /**
+     * Parses the total size from the content range of a partial response and checks that
+     * the range starts at the expected position. Returns -1, if the total size is unknown.
+     */
+    private static long rangeTotal(Response response, long expectedStart) throws IOException {
+        // format is "bytes start-end/total", where total might be "*"
+        String contentRange = response.header("Content-Range", "");
+        Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+        if (!matcher.matches() || Long.parseLong(matcher.group(1)) != expectedStart)
+            throw new InvalidRangeException("Unexpected content range '" + contentRange + "'");
+
+        String total = matcher.group(2);
+        return "*".equals(total) ? -1 : Long.parseLong(total);
+    }
+
+    /**
+     * The server sent a range that does not continue the partial file.
+     */
+    private static final class InvalidRangeException extends IOException {
+        InvalidRangeException(String message) {
+            super(message);
+        }
+    }
+
+    private final class ItemInputStream extends InputStream {
+        private final Item item;
+
+        private RandomAccessFile file;
+        private long position;
+        private boolean closed;
+
+        ItemInputStream(Item item, long position) {
+            this.item = item;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == 1 ? buffer[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) throws IOException {
+            if (byteCount == 0)
+                return 0;
+
+            long available = item.awaitData(position) - position;
+            if (available <= 0)
+                return -1;
+
+            if (file == null) {
+                file = item.open();
+                file.seek(position);
+            }
+
+            int count = file.read(buffer, byteOffset, (int) Math.min(byteCount, available));
+            if (count > 0) {
+                position += count;
+            }
+
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = Math.max(0, Math.min(n, item.awaitData(position) - position));
+            position += count;
+
+            if (file != null) {
+                file.seek(position);
+            }
+
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, item.written - position));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+
+                try {
+                    if (file != null) {
+                        file.close();
+                    }
+                } finally {
+                    release(item);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.pr0gramm.app.io;
+
+import android.net.Uri;
+
+import com.pr0gramm.app.util.PicassoMemoryCache;
+import com.squareup.picasso.Downloader;
+import com.squareup.picasso.NetworkPolicy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import okhttp3.CacheControl;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+
+/**
+ * A picasso downloader that loads every image with the client of its
+ * {@link HttpCachePartitions partition}, so thumbnails and full images
+ * are cached separately.
+ * <p>
+ * Small images are also kept encoded in the {@link PicassoMemoryCache} and are
+ * served from there without going to the disk or the network. Picasso still decodes
+ * and retries them with its own network request handler.
+ */
+public class PartitionedDownloader implements Downloader {
+    private final HttpCachePartitions partitions;
+    private final PicassoMemoryCache memoryCache;
+
+    public PartitionedDownloader(HttpCachePartitions partitions, PicassoMemoryCache memoryCache) {
+        this.partitions = partitions;
+        this.memoryCache = memoryCache;
+    }
+
+    @Override
+    public Response load(Uri uri, int networkPolicy) throws IOException {
+        String key = uri.toString();
+        if (NetworkPolicy.shouldReadFromDiskCache(networkPolicy)) {
+            byte[] cached = memoryCache.getEncoded(key);
+            if (cached != null)
+                return new Response(new ByteArrayInputStream(cached), true, cached.length);
+        }
+
+        Request.Builder request = new Request.Builder().url(uri.toString());
+
+        if (networkPolicy != 0) {
+            if (NetworkPolicy.isOfflineOnly(networkPolicy)) {
+                request.cacheControl(CacheControl.FORCE_CACHE);
+            } else {
+                CacheControl.Builder cacheControl = new CacheControl.Builder();
+                if (!NetworkPolicy.shouldReadFromDiskCache(networkPolicy))
+                    cacheControl.noCache();
+
+                if (!NetworkPolicy.shouldWriteToDiskCache(networkPolicy))
+                    cacheControl.noStore();
+
+                request.cacheControl(cacheControl.build());
+            }
+        }
+
+        okhttp3.Response response = partitions.newCall(request.build()).execute();
+        if (response.code() >= 300) {
+            response.body().close();
+            throw new ResponseException(response.code() + " " + response.message(),
+                    networkPolicy, response.code());
+        }
+
+        boolean fromCache = response.cacheResponse() != null;
+
+        ResponseBody body = response.body();
+        if (PicassoMemoryCache.acceptsEncoded(body.contentLength())) {
+            byte[] bytes = body.bytes();
+            memoryCache.putEncoded(key, bytes);
+            return new Response(new ByteArrayInputStream(bytes), fromCache, bytes.length);
+        }
+
+        return new Response(body.byteStream(), fromCache, body.contentLength());
+    }
+
+    @Override
+    public void shutdown() {
+        // the clients are shared with the rest of the app
+    }
+}
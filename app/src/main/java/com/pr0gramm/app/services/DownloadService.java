@@ -16,6 +16,7 @@ import com.google.common.io.PatternFilenameFilter;
 import com.pr0gramm.app.R;
 import com.pr0gramm.app.Settings;
 import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.io.HttpCachePartitions;
 import com.pr0gramm.app.services.proxy.ProxyService;
 
 import org.joda.time.format.DateTimeFormat;
@@ -31,7 +32,6 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import okhttp3.Call;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import rx.Observable;
@@ -47,14 +47,14 @@ public class DownloadService {
     private final Settings settings;
     private final ProxyService proxyService;
     private final DownloadManager downloadManager;
-    private final OkHttpClient okHttpClient;
+    private final HttpCachePartitions httpClient;
 
     @Inject
-    public DownloadService(DownloadManager downloadManager, ProxyService proxyService, Context context, OkHttpClient okHttpClient) {
+    public DownloadService(DownloadManager downloadManager, ProxyService proxyService, Context context, HttpCachePartitions httpClient) {
         this.context = context;
         this.proxyService = proxyService;
         this.downloadManager = downloadManager;
-        this.okHttpClient = okHttpClient;
+        this.httpClient = httpClient;
 
         this.settings = Settings.of(context);
     }
@@ -133,7 +133,7 @@ public class DownloadService {
                 try (OutputStream output = new FileOutputStream(tempFile)) {
                     // now do the request
                     Request request = new Request.Builder().url(uri).build();
-                    Call call = okHttpClient.newCall(request);
+                    Call call = httpClient.newCall(request);
                     subscriber.add(Subscriptions.create(call::cancel));
 
                     Response response = call.execute();
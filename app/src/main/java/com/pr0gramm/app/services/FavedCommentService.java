@@ -7,6 +7,7 @@ import com.pr0gramm.app.api.InstantTypeAdapter;
 import com.pr0gramm.app.api.pr0gramm.Api;
 import com.pr0gramm.app.api.pr0gramm.ImmutableApi;
 import com.pr0gramm.app.feed.ContentType;
+import com.pr0gramm.app.io.HttpCachePartitions;
 import com.pr0gramm.app.util.BackgroundScheduler;
 
 import org.immutables.gson.Gson;
@@ -25,7 +26,6 @@ import javax.inject.Singleton;
 import gnu.trove.TCollections;
 import gnu.trove.set.TLongSet;
 import gnu.trove.set.hash.TLongHashSet;
-import okhttp3.OkHttpClient;
 import retrofit2.Retrofit;
 import retrofit2.adapter.rxjava.RxJavaCallAdapterFactory;
 import retrofit2.converter.gson.GsonConverterFactory;
@@ -56,9 +56,9 @@ public class FavedCommentService {
     private final PublishSubject<String> forceUpdateUserHash = PublishSubject.create();
 
     @Inject
-    public FavedCommentService(UserService userService, OkHttpClient okHttpClient) {
+    public FavedCommentService(UserService userService, HttpCachePartitions partitions) {
         this.api = new Retrofit.Builder()
-                .client(okHttpClient)
+                .client(partitions.client(HttpCachePartitions.Partition.API))
                 .baseUrl("https://pr0.wibbly-wobbly.de/api/comments/v1/")
                 .addConverterFactory(GsonConverterFactory.create(new GsonBuilder()
                         .registerTypeAdapterFactory(new GsonAdaptersFavedCommentService())
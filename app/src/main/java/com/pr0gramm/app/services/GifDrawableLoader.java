@@ -1,33 +1,31 @@
 package com.pr0gramm.app.services;
 
-import android.annotation.SuppressLint;
-import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.support.annotation.Nullable;
 
-import com.pr0gramm.app.services.proxy.ProxyService;
+import com.google.common.io.ByteStreams;
+import com.pr0gramm.app.io.MediaCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import okhttp3.Call;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 import pl.droidsonroids.gif.GifDrawable;
 import rx.Observable;
 import rx.Subscriber;
-import rx.subscriptions.Subscriptions;
 
 import static com.pr0gramm.app.util.AndroidUtility.toFile;
-import static java.lang.System.identityHashCode;
 
 /**
  */
@@ -35,13 +33,14 @@ import static java.lang.System.identityHashCode;
 public class GifDrawableLoader {
     private static final Logger logger = LoggerFactory.getLogger("GifLoader");
 
-    private final OkHttpClient okHttpClient;
-    private final File fileCache;
+    // do not try to decode a preview before we got this many bytes.
+    private static final long MIN_PREVIEW_BYTES = 16 * 1024;
+
+    private final MediaCache mediaCache;
 
     @Inject
-    public GifDrawableLoader(Context context, OkHttpClient okHttpClient, ProxyService proxyService) {
-        this.okHttpClient = okHttpClient;
-        this.fileCache = context.getCacheDir();
+    public GifDrawableLoader(MediaCache mediaCache) {
+        this.mediaCache = mediaCache;
     }
 
     public Observable<DownloadStatus> load(Uri uri) {
@@ -54,22 +53,10 @@ public class GifDrawableLoader {
                     return;
                 }
 
-                // request the gif file
-                Call call = okHttpClient.newCall(new Request.Builder()
-                        .url(uri.toString())
-                        .build());
-
-                // stop the call on unsubscribe
-                subscriber.add(Subscriptions.create(call::cancel));
-
-                Response response = call.execute();
-                if (response.isSuccessful()) {
-                    loadGifUsingTempFile(subscriber, response);
-
-                } else {
-                    subscriber.onError(new IOException(
-                            "Could not download gif, response code: " + response.code()));
+                try (MediaCache.Entry entry = mediaCache.get(uri)) {
+                    loadGifFromCache(subscriber, entry);
                 }
+
             } catch (Throwable error) {
                 logger.warn("Error during loading", error);
 
@@ -80,75 +67,158 @@ public class GifDrawableLoader {
     }
 
     /**
-     * Loads the data of the gif into a temporary file. The method then
-     * loads the gif from this temporary file. The temporary file is removed
-     * after loading the gif (or on failure).
+     * Waits for the gif to be stored in the media cache and publishes the
+     * download progress in the meantime. As soon as the first frame is available,
+     * it is published as a preview. The gif is then loaded from the cached file.
+     * Unsubscribing stops the download, if nobody else needs the file.
      */
-    @SuppressLint("NewApi")
-    private void loadGifUsingTempFile(Subscriber<? super GifDrawableLoader.DownloadStatus> subscriber,
-                                      Response response) throws IOException {
-
-        File temporary = new File(fileCache, "tmp" + identityHashCode(subscriber) + ".gif");
-
-        logger.info("storing data into temporary file");
-
-        try (RandomAccessFile storage = new RandomAccessFile(temporary, "rw")) {
-            // remove entry from filesystem now - the system will remove the data
-            // when the stream closes.
-            //noinspection ResultOfMethodCallIgnored
-            temporary.delete();
-
-            // copy data to the file.
-            long lastStatusTime = System.currentTimeMillis();
-            float contentLength = (float) response.body().contentLength();
-            try (InputStream stream = response.body().byteStream()) {
-                int length, count = 0;
-                byte[] buffer = new byte[16 * 1024];
-                while ((length = stream.read(buffer)) >= 0) {
-                    storage.write(buffer, 0, length);
-                    count += length;
-
-                    if (subscriber.isUnsubscribed()) {
-                        logger.info("Stopped because the subscriber unsubscribed");
-                        return;
-                    }
-
-                    // publish download progress every 100ms
-                    long now = System.currentTimeMillis();
-                    if (now - lastStatusTime > 250) {
-                        subscriber.onNext(new DownloadStatus(count / contentLength));
-                        lastStatusTime = now;
-                    }
-                }
-            }
+    private void loadGifFromCache(Subscriber<? super DownloadStatus> subscriber,
+                                  MediaCache.Entry entry) throws IOException {
+
+        boolean previewShown = false;
+        long nextPreviewAttempt = MIN_PREVIEW_BYTES;
 
-            if (subscriber.isUnsubscribed())
+        while (!entry.awaitCompletion(250, TimeUnit.MILLISECONDS)) {
+            if (subscriber.isUnsubscribed()) {
+                logger.info("Stopped because the subscriber unsubscribed");
                 return;
+            }
 
-            try {
-                GifDrawable drawable = new GifDrawable(storage.getFD());
+            Bitmap preview = null;
+            long cachedSize = entry.cachedSize();
+            if (!previewShown && cachedSize >= nextPreviewAttempt) {
+                preview = decodeFirstFrame(entry, cachedSize);
+                previewShown = preview != null;
 
-                // closing is now delegated to the drawable.
-                subscriber.onNext(new DownloadStatus(drawable));
-                subscriber.onCompleted();
-            } catch (Throwable error) {
-                subscriber.onError(error);
+                // try again once we got a good amount of new data.
+                nextPreviewAttempt = 2 * cachedSize;
+            }
+
+            float progress = entry.fractionCached();
+            if (progress >= 0 || preview != null) {
+                subscriber.onNext(new DownloadStatus(Math.max(0, progress), preview));
             }
         }
+
+        if (subscriber.isUnsubscribed())
+            return;
+
+        // the drawable keeps its own handle to the file, even if
+        // the file is removed from the cache later on.
+        subscriber.onNext(new DownloadStatus(new GifDrawable(entry.file())));
+        subscriber.onCompleted();
+    }
+
+    /**
+     * Decodes the first frame of the gif from the bytes that are already stored.
+     * Returns null, if the first frame is not yet complete. The decoder happily
+     * returns a partially filled bitmap for a truncated frame, so we check the
+     * structure of the gif first.
+     */
+    @Nullable
+    private static Bitmap decodeFirstFrame(MediaCache.Entry entry, long cachedSize) {
+        try {
+            try (InputStream input = new BufferedInputStream(
+                    ByteStreams.limit(entry.inputStreamAt(0), cachedSize))) {
+
+                if (!hasCompleteFirstFrame(input))
+                    return null;
+            }
+
+            try (InputStream input = ByteStreams.limit(entry.inputStreamAt(0), cachedSize)) {
+                return BitmapFactory.decodeStream(input);
+            }
+
+        } catch (IOException | RuntimeException error) {
+            logger.info("Could not decode first frame of gif: {}", error.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Walks over the blocks of the gif up to the end of the image data of the first
+     * frame. Returns false, if the stream ends before that.
+     */
+    private static boolean hasCompleteFirstFrame(InputStream input) throws IOException {
+        try {
+            // header and logical screen descriptor
+            byte[] header = new byte[13];
+            ByteStreams.readFully(input, header);
+            if (header[0] != 'G' || header[1] != 'I' || header[2] != 'F')
+                throw new IOException("Not a gif");
+
+            skipColorTable(input, header[10]);
+
+            while (true) {
+                int block = readByte(input);
+                if (block == 0x21) {
+                    // extension: label followed by data sub-blocks
+                    readByte(input);
+                    skipSubBlocks(input);
+
+                } else if (block == 0x2c) {
+                    // image descriptor, the packed field is the last byte
+                    byte[] descriptor = new byte[9];
+                    ByteStreams.readFully(input, descriptor);
+                    skipColorTable(input, descriptor[8]);
+
+                    // lzw minimum code size followed by the image data
+                    readByte(input);
+                    skipSubBlocks(input);
+                    return true;
+
+                } else {
+                    // trailer or garbage, there is no frame we could show.
+                    return false;
+                }
+            }
+
+        } catch (EOFException ignored) {
+            return false;
+        }
+    }
+
+    private static void skipColorTable(InputStream input, byte packed) throws IOException {
+        if ((packed & 0x80) != 0) {
+            ByteStreams.skipFully(input, 3 << ((packed & 0x07) + 1));
+        }
+    }
+
+    private static void skipSubBlocks(InputStream input) throws IOException {
+        int size;
+        while ((size = readByte(input)) != 0) {
+            ByteStreams.skipFully(input, size);
+        }
+    }
+
+    private static int readByte(InputStream input) throws IOException {
+        int value = input.read();
+        if (value < 0)
+            throw new EOFException();
+
+        return value;
     }
 
     public static class DownloadStatus {
         public final GifDrawable drawable;
         public final float progress;
 
-        private DownloadStatus(float progress) {
+        /**
+         * The first frame of the gif, while the gif is still loading.
+         */
+        @Nullable
+        public final Bitmap preview;
+
+        private DownloadStatus(float progress, @Nullable Bitmap preview) {
             this.drawable = null;
             this.progress = progress;
+            this.preview = preview;
         }
 
         private DownloadStatus(GifDrawable drawable) {
             this.drawable = drawable;
             this.progress = 1.f;
+            this.preview = null;
         }
 
         public boolean finished() {
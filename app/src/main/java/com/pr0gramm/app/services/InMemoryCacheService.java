@@ -20,6 +20,9 @@ import java.util.concurrent.atomic.AtomicReference;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import rx.Observable;
+import rx.subjects.PublishSubject;
+
 /**
  * This service helps to locally cache deltas to the pr0gramm. Those
  * deltas might arise because of cha0s own caching.
@@ -35,6 +38,7 @@ public class InMemoryCacheService {
             .build();
 
     private final AtomicReference<long[]> repostCache = new AtomicReference<>(new long[0]);
+    private final PublishSubject<List<Long>> repostChanges = PublishSubject.create();
 
     @Inject
     public InMemoryCacheService() {
@@ -76,6 +80,14 @@ public class InMemoryCacheService {
         reposts.addAll(newRepostIds);
 
         repostCache.set(Longs.toArray(reposts));
+        repostChanges.onNext(ImmutableList.copyOf(newRepostIds));
+    }
+
+    /**
+     * Emits the ids of items that were newly cached as reposts.
+     */
+    public Observable<List<Long>> repostChanges() {
+        return repostChanges.asObservable();
     }
 
     /**
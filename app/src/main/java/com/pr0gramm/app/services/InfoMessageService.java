@@ -3,6 +3,7 @@ package com.pr0gramm.app.services;
 import android.support.annotation.Nullable;
 
 import com.google.gson.GsonBuilder;
+import com.pr0gramm.app.io.HttpCachePartitions;
 
 import org.immutables.gson.Gson;
 import org.immutables.value.Value;
@@ -10,7 +11,6 @@ import org.immutables.value.Value;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import okhttp3.OkHttpClient;
 import retrofit2.Retrofit;
 import retrofit2.adapter.rxjava.RxJavaCallAdapterFactory;
 import retrofit2.converter.gson.GsonConverterFactory;
@@ -27,13 +27,13 @@ public class InfoMessageService {
     private final Api api;
 
     @Inject
-    public InfoMessageService(OkHttpClient okHttpClient) {
+    public InfoMessageService(HttpCachePartitions partitions) {
         GsonConverterFactory converterFactory = GsonConverterFactory.create(new GsonBuilder()
                 .registerTypeAdapterFactory(new GsonAdaptersInfoMessageService())
                 .create());
 
         this.api = new Retrofit.Builder()
-                .client(okHttpClient)
+                .client(partitions.client(HttpCachePartitions.Partition.API))
                 .baseUrl("https://pr0.wibbly-wobbly.de/")
                 .addConverterFactory(converterFactory)
                 .addCallAdapterFactory(RxJavaCallAdapterFactory.create())
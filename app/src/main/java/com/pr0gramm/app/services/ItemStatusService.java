@@ -0,0 +1,158 @@
+package com.pr0gramm.app.services;
+
+import android.support.annotation.Nullable;
+
+import com.google.common.primitives.Longs;
+import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.feed.Vote;
+import com.pr0gramm.app.orm.CachedVote;
+import com.pr0gramm.app.services.preloading.PreloadManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import rx.Observable;
+
+/**
+ * Combines the per item state of a few services (seen, repost, preloaded, voted)
+ * into one compact status word per item.
+ */
+@Singleton
+public class ItemStatusService {
+    private static final Logger logger = LoggerFactory.getLogger("ItemStatusService");
+
+    public static final int SEEN = 1;
+    public static final int REPOST = 1 << 1;
+    public static final int PRELOADED = 1 << 2;
+    public static final int VOTED_UP = 1 << 3;
+    public static final int VOTED_DOWN = 1 << 4;
+    public static final int FAVORITE = 1 << 5;
+
+    public static final int VOTE_MASK = VOTED_UP | VOTED_DOWN | FAVORITE;
+
+    private final SeenService seenService;
+    private final InMemoryCacheService inMemoryCacheService;
+    private final PreloadManager preloadManager;
+    private final VoteService voteService;
+
+    @Inject
+    public ItemStatusService(SeenService seenService, InMemoryCacheService inMemoryCacheService,
+                             PreloadManager preloadManager, VoteService voteService) {
+
+        this.seenService = seenService;
+        this.inMemoryCacheService = inMemoryCacheService;
+        this.preloadManager = preloadManager;
+        this.voteService = voteService;
+    }
+
+    /**
+     * Resolves the status of all items in the given page in one pass.
+     * This hits the database, so do not call this on the main thread.
+     */
+    public TLongIntMap resolve(Api.Feed feed) {
+        List<Long> ids = new ArrayList<>(feed.getItems().size());
+        for (Api.Feed.Item item : feed.getItems()) {
+            ids.add(item.getId());
+        }
+
+        TLongIntMap result = new TLongIntHashMap(ids.size());
+        for (long id : ids) {
+            int status = 0;
+
+            if (seenService.isSeen(id))
+                status |= SEEN;
+
+            if (inMemoryCacheService.isRepost(id))
+                status |= REPOST;
+
+            if (preloadManager.exists(id))
+                status |= PRELOADED;
+
+            result.put(id, status);
+        }
+
+        try {
+            for (CachedVote vote : CachedVote.find(CachedVote.Type.ITEM, ids)) {
+                result.put(vote.itemId, result.get(vote.itemId) | voteStatus(vote.vote));
+            }
+        } catch (Exception error) {
+            logger.warn("Could not query cached votes", error);
+        }
+
+        return result;
+    }
+
+    /**
+     * Emits incremental changes to the status of items whenever one of the
+     * underlying services changes.
+     */
+    public Observable<Change> changes() {
+        Observable<Change> seen = seenService.changes()
+                .map(id -> new Change(new long[]{id}, SEEN, 0));
+
+        // a change without ids applies to all items
+        Observable<Change> seenCleared = seenService.cleared()
+                .map(ignored -> new Change(null, 0, SEEN));
+
+        Observable<Change> reposts = inMemoryCacheService.repostChanges()
+                .map(ids -> new Change(Longs.toArray(ids), REPOST, 0));
+
+        Observable<Change> votes = voteService.itemVotes()
+                .map(vote -> new Change(new long[]{vote.itemId}, voteStatus(vote.vote), VOTE_MASK));
+
+        return Observable.merge(seen, seenCleared, reposts, votes, preloadChanges());
+    }
+
+    /**
+     * Follows the changes of the preloaded items.
+     */
+    private Observable<Change> preloadChanges() {
+        return preloadManager.changes()
+                .filter(change -> change.itemIds.length > 0)
+                .map(change -> change.preloaded
+                        ? new Change(change.itemIds, PRELOADED, 0)
+                        : new Change(change.itemIds, 0, PRELOADED));
+    }
+
+    private static int voteStatus(Vote vote) {
+        switch (vote) {
+            case UP:
+                return VOTED_UP;
+
+            case DOWN:
+                return VOTED_DOWN;
+
+            case FAVORITE:
+                return FAVORITE | VOTED_UP;
+
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * A change of the status of some items. The new status
+     * of an item is computed as {@code (status & ~clear) | set}.
+     * If there are no item ids, the change applies to all items.
+     */
+    public static final class Change {
+        @Nullable
+        public final long[] itemIds;
+        public final int set;
+        public final int clear;
+
+        Change(@Nullable long[] itemIds, int set, int clear) {
+            this.itemIds = itemIds;
+            this.set = set;
+            this.clear = clear;
+        }
+    }
+}
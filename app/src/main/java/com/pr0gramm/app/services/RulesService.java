@@ -5,6 +5,7 @@ import android.widget.TextView;
 
 import com.google.common.base.Strings;
 import com.pr0gramm.app.R;
+import com.pr0gramm.app.io.HttpCachePartitions;
 import com.pr0gramm.app.util.AndroidUtility;
 import com.pr0gramm.app.util.BackgroundScheduler;
 import com.trello.rxlifecycle.RxLifecycle;
@@ -17,7 +18,6 @@ import java.util.regex.Pattern;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import rx.Observable;
@@ -33,12 +33,12 @@ public class RulesService {
     private final Observable<String> rules;
 
     @Inject
-    public RulesService(OkHttpClient okHttpClient) {
+    public RulesService(HttpCachePartitions httpClient) {
         this.rules = Async.fromCallable(() -> {
                     long cacheSlayer = System.currentTimeMillis() / (24 * 3600);
                     String url = "https://pr0gramm.com/media/pr0gramm.min.js?app" + cacheSlayer;
                     Request request = new Request.Builder().url(url).build();
-                    Response response = okHttpClient.newCall(request).execute();
+                    Response response = httpClient.newCall(request).execute();
                     return response.isSuccessful() ? response.body().string() : null;
                 },
 
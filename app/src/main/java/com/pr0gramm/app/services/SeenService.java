@@ -1,12 +1,12 @@
 package com.pr0gramm.app.services;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.os.AsyncTask;
 
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
 import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.io.MappedBitSet;
 import com.pr0gramm.app.util.AndroidUtility;
 
 import org.apache.commons.io.FileUtils;
@@ -15,22 +15,24 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import rx.Observable;
+import rx.subjects.PublishSubject;
+
 /**
  * Very simple service to check if an item was already visited or not.
+ * The state is stored in a file backed {@link MappedBitSet} that grows with the ids.
  */
 @Singleton
 public class SeenService {
     private static final Logger logger = LoggerFactory.getLogger("SeenService");
 
-    private final Object lock = new Object();
-    private final SettableFuture<ByteBuffer> buffer = SettableFuture.create();
+    private final SettableFuture<MappedBitSet> bits = SettableFuture.create();
+    private final PublishSubject<Long> changes = PublishSubject.create();
+    private final PublishSubject<Void> cleared = PublishSubject.create();
 
     @Inject
     public SeenService(Context context) {
@@ -42,7 +44,8 @@ public class SeenService {
             migrate(legacyFile, file);
 
             try {
-                buffer.set(mapByteBuffer(file));
+                logger.info("Mapping cache: " + file);
+                bits.set(new MappedBitSet(file));
             } catch (IOException error) {
                 logger.warn("Could not load the seen-Cache");
             }
@@ -66,73 +69,59 @@ public class SeenService {
     }
 
     public boolean isSeen(long id) {
-        if (!this.buffer.isDone())
+        if (!this.bits.isDone())
             return false;
 
-        int idx = (int) id / 8;
+        try {
+            return Futures.getUnchecked(this.bits).get(id);
 
-        ByteBuffer buffer = Futures.getUnchecked(this.buffer);
-        if (idx < 0 || idx >= buffer.limit()) {
-            logger.warn("Id is too large");
+        } catch (IOException error) {
+            logger.warn("Could not read seen state of item {}", id, error);
             return false;
         }
-
-        int mask = 1 << (7 - id % 8);
-        return (buffer.get(idx) & mask) != 0;
     }
 
     public void markAsSeen(FeedItem item) {
-        if (!this.buffer.isDone())
+        if (!this.bits.isDone())
             return;
 
-        int idx = (int) item.id() / 8;
+        try {
+            Futures.getUnchecked(this.bits).set(item.id());
+            changes.onNext(item.id());
 
-        ByteBuffer buffer = Futures.getUnchecked(this.buffer);
-        if (idx < 0 || idx >= buffer.limit()) {
-            logger.warn("Id is too large");
-            return;
+        } catch (IOException error) {
+            logger.warn("Could not mark item {} as seen", item.id(), error);
         }
+    }
 
-        // only one thread can write the buffer at a time.
-        synchronized (lock) {
-            byte value = buffer.get(idx);
-            value |= 1 << (7 - item.id() % 8);
-            buffer.put(idx, value);
-        }
+    /**
+     * Emits the id of every item that is marked as seen.
+     */
+    public Observable<Long> changes() {
+        return changes.asObservable();
+    }
+
+    /**
+     * Emits an event every time the seen status of all items was removed.
+     */
+    public Observable<Void> cleared() {
+        return cleared.asObservable();
     }
 
     /**
      * Removes the "marked as seen" status from all items.
      */
     public void clear() {
-        if (!this.buffer.isDone())
+        if (!this.bits.isDone())
             return;
 
-        ByteBuffer buffer = Futures.getUnchecked(this.buffer);
-
-        synchronized (lock) {
+        try {
             logger.info("Removing all the items");
-            for (int idx = 0; idx < buffer.limit(); idx++) {
-                buffer.put(idx, (byte) 0);
-            }
-        }
-    }
+            Futures.getUnchecked(this.bits).clear();
+            cleared.onNext(null);
 
-    /**
-     * Maps the cache into a byte buffer. The buffer is backed by the file, so
-     * all changes to the buffer are written back to the file.
-     *
-     * @param file The file to map into memory
-     */
-    @SuppressLint("NewApi")
-    private static ByteBuffer mapByteBuffer(File file) throws IOException {
-        // space for up to four million posts
-        final long size = 4_000_000 / 8;
-
-        logger.info("Mapping cache: " + file);
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.setLength(size);
-            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException error) {
+            logger.warn("Could not clear the seen-Cache", error);
         }
     }
 }
@@ -23,6 +23,8 @@ import com.google.common.io.ByteStreams;
 import com.pr0gramm.app.BuildConfig;
 import com.pr0gramm.app.Dagger;
 import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.io.HttpCachePartitions;
+import com.pr0gramm.app.io.MediaCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,7 +36,6 @@ import java.io.InputStream;
 
 import javax.inject.Inject;
 
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
@@ -46,7 +47,10 @@ public class ShareProvider extends ContentProvider {
     private static final Logger logger = LoggerFactory.getLogger("ShareProvider");
 
     @Inject
-    OkHttpClient httpClient;
+    HttpCachePartitions httpClient;
+
+    @Inject
+    MediaCache mediaCache;
 
     @Override
     public boolean onCreate() {
@@ -140,9 +144,10 @@ public class ShareProvider extends ContentProvider {
         return openPipeHelper(uri, null, null, null, (output, uri1, mimeType, opts, args) -> {
             try {
                 if (url.matches("https?://.*")) {
-                    Response response = httpClient.newCall(new Request.Builder().url(url).build()).execute();
-                    try (InputStream source = response.body().byteStream()) {
-                        // stream the data to the caller
+                    try (MediaCache.Entry entry = mediaCache.get(Uri.parse(url));
+                         InputStream source = entry.inputStreamAt(0)) {
+
+                        // stream the data to the caller while it is stored in the cache
                         ByteStreams.copy(source, new FileOutputStream(output.getFileDescriptor()));
                     }
                 } else {
@@ -12,6 +12,7 @@ import com.pr0gramm.app.Settings;
 import com.pr0gramm.app.api.pr0gramm.Api;
 import com.pr0gramm.app.api.pr0gramm.LoginCookieHandler;
 import com.pr0gramm.app.feed.ContentType;
+import com.pr0gramm.app.feed.FeedCache;
 import com.pr0gramm.app.orm.BenisRecord;
 import com.pr0gramm.app.util.BackgroundScheduler;
 
@@ -51,6 +52,7 @@ public class UserService {
     private final SeenService seenService;
     private final InboxService inboxService;
     private final LoginCookieHandler cookieHandler;
+    private final FeedCache feedCache;
     private final SharedPreferences preferences;
 
     private final Gson gson;
@@ -66,13 +68,14 @@ public class UserService {
                        VoteService voteService,
                        SeenService seenService, InboxService inboxService, LoginCookieHandler cookieHandler,
                        SharedPreferences preferences, Settings settings, Gson gson,
-                       SingleShotService sso) {
+                       SingleShotService sso, FeedCache feedCache) {
 
         this.api = api;
         this.seenService = seenService;
         this.voteService = voteService;
         this.inboxService = inboxService;
         this.cookieHandler = cookieHandler;
+        this.feedCache = feedCache;
         this.preferences = preferences;
         this.settings = settings;
         this.gson = gson;
@@ -122,6 +125,9 @@ public class UserService {
     public Observable<LoginProgress> login(String username, String password) {
         return api.login(username, password).flatMap(login -> {
             if (login.success()) {
+                // cached pages were loaded with the previous account
+                feedCache.clear();
+
                 // perform initial sync in background.
                 syncWithProgress()
                         .subscribeOn(BackgroundScheduler.instance())
@@ -169,6 +175,9 @@ public class UserService {
             // clear the seen items
             seenService.clear();
 
+            // cached pages belong to the account that just logged out
+            feedCache.clear();
+
             // no more read messages.
             inboxService.forgetReadMessage();
             inboxService.publishUnreadMessagesCount(0);
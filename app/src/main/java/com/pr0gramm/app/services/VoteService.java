@@ -32,6 +32,7 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import rx.Observable;
+import rx.subjects.PublishSubject;
 import rx.util.async.Async;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -47,6 +48,7 @@ public class VoteService {
     private static final Logger logger = LoggerFactory.getLogger("VoteService");
 
     private final Api api;
+    private final PublishSubject<CachedVote> itemVotes = PublishSubject.create();
 
     @Inject
     public VoteService(Api api) {
@@ -65,9 +67,18 @@ public class VoteService {
         Track.votePost(vote);
 
         AsyncTask.execute(() -> storeVoteValueInTx(CachedVote.Type.ITEM, item.id(), vote));
+        itemVotes.onNext(new CachedVote(CachedVote.Type.ITEM, item.id(), vote));
+
         return api.vote(null, item.id(), vote.getVoteValue());
     }
 
+    /**
+     * Emits every vote the user casts on a post.
+     */
+    public Observable<CachedVote> itemVotes() {
+        return itemVotes.asObservable();
+    }
+
     public Observable<Nothing> vote(Api.Comment comment, Vote vote) {
         logger.info("Voting comment {} {}", comment.getId(), vote);
         Track.voteComment(vote);
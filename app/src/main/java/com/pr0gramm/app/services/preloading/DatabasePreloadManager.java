@@ -1,16 +1,17 @@
 package com.pr0gramm.app.services.preloading;
 
 import android.annotation.SuppressLint;
-import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.os.Build;
+import android.support.annotation.Nullable;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
 import com.pr0gramm.app.util.AndroidUtility;
 import com.pr0gramm.app.util.BackgroundScheduler;
 import com.squareup.sqlbrite.BriteDatabase;
@@ -21,13 +22,23 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
 import rx.Observable;
+import rx.subjects.PublishSubject;
 
 /**
  */
@@ -38,72 +49,93 @@ public class DatabasePreloadManager implements PreloadManager {
     private static final String TABLE_NAME = "preload_2";
     private static final String QUERY_ALL_ITEM_IDS = "SELECT * FROM " + TABLE_NAME;
 
+    // number of items that are deleted with one statement
+    private static final int DELETE_BATCH_SIZE = 100;
+
+    // items accessed in the same hour are evicted largest first
+    private static final long ACCESS_GRANULARITY_MILLIS = 60 * 60 * 1000;
+
+    // access times are collected for this long before they are written.
+    private static final long ACCESS_FLUSH_DELAY_SECONDS = 60;
+
     private final Observable<BriteDatabase> database;
-    private final AtomicReference<ImmutableMap<Long, PreloadItem>> preloadCache =
-            new AtomicReference<>(ImmutableMap.<Long, PreloadItem>of());
+
+    // index of all preloaded items, all state is guarded by the index itself.
+    private final TLongObjectMap<PreloadItem> index = new TLongObjectHashMap<>();
+
+    // items whose files were checked to exist since the index was loaded
+    private final TLongSet validated = new TLongHashSet();
+
+    // items removed while the index is loading, so the load does not add them again
+    private final TLongSet removedWhileLoading = new TLongHashSet();
+    private boolean loaded;
+
+    // every change of the index, emitted while holding the index lock.
+    private final PublishSubject<Change> changes = PublishSubject.create();
+
+    // access times that are not yet written to the database, guarded by itself.
+    private final Map<Long, Long> pendingAccessTimes = new HashMap<>();
+    private boolean flushScheduled;
 
     @Inject
     public DatabasePreloadManager(Observable<BriteDatabase> database) {
         this.database = database;
 
         // initialize in background.
-        queryAllItems()
+        this.database
                 .subscribeOn(BackgroundScheduler.instance())
-                .subscribe(this::setPreloadCache);
+                .subscribe(this::loadIndex, AndroidUtility::logToCrashlytics);
     }
 
-    @TargetApi(Build.VERSION_CODES.KITKAT)
-    private void setPreloadCache(ImmutableMap<Long, PreloadItem> items) {
-        List<PreloadItem> missing = new ArrayList<>();
-        ImmutableMap.Builder<Long, PreloadItem> available = ImmutableMap.builder();
-
-        for (PreloadItem item : items.values()) {
-            if (!item.thumbnail().exists() || !item.media().exists()) {
-                missing.add(item);
-            } else {
-                available.put(item.itemId(), item);
-            }
+    /**
+     * Reads all items into the index. Items stored in the meantime are newer
+     * than the ones read from the database and stay in the index.
+     */
+    @SuppressLint("NewApi")
+    private void loadIndex(BriteDatabase db) {
+        List<PreloadItem> items = new ArrayList<>();
+        try (Cursor cursor = db.query(QUERY_ALL_ITEM_IDS)) {
+            while (cursor.moveToNext())
+                items.add(readPreloadItem(cursor));
         }
 
-        if (missing.size() > 0) {
-            // delete missing entries in background.
-            this.database.subscribeOn(BackgroundScheduler.instance()).subscribe(db -> {
-                try (BriteDatabase.Transaction tx = db.newTransaction()) {
-                    deleteTx(db, missing);
-                    tx.markSuccessful();
+        synchronized (index) {
+            TLongList added = new TLongArrayList(items.size());
+            for (PreloadItem item : items) {
+                long itemId = item.itemId();
+                if (!index.containsKey(itemId) && !removedWhileLoading.contains(itemId)) {
+                    index.put(itemId, item);
+                    added.add(itemId);
                 }
-            });
-        }
+            }
 
-        preloadCache.set(available.build());
-    }
+            removedWhileLoading.clear();
+            loaded = true;
 
-    private Observable<ImmutableMap<Long, PreloadItem>> queryAllItems() {
-        return this.database
-                .flatMap(db -> db.createQuery(TABLE_NAME, QUERY_ALL_ITEM_IDS).mapToList(this::readPreloadItem))
-                .map(this::readPreloadEntriesFromCursor)
-                .doOnError(AndroidUtility::logToCrashlytics)
-                .onErrorResumeNext(Observable.empty());
+            changes.onNext(new Change(added.toArray(), true));
+        }
+
+        logger.info("Loaded index of {} preloaded items", items.size());
     }
 
     private PreloadItem readPreloadItem(Cursor cursor) {
         int cItemId = cursor.getColumnIndexOrThrow("itemId");
         int cCreation = cursor.getColumnIndexOrThrow("creation");
+        int cLastAccess = cursor.getColumnIndexOrThrow("lastAccess");
         int cMedia = cursor.getColumnIndexOrThrow("media");
         int cThumbnail = cursor.getColumnIndexOrThrow("thumbnail");
+        int cSize = cursor.getColumnIndexOrThrow("size");
 
         return ImmutablePreloadItem.builder()
                 .itemId(cursor.getLong(cItemId))
                 .creation(new Instant(cursor.getLong(cCreation)))
+                .lastAccess(new Instant(cursor.getLong(cLastAccess)))
                 .media(new File(cursor.getString(cMedia)))
                 .thumbnail(new File(cursor.getString(cThumbnail)))
+                .size(cursor.getLong(cSize))
                 .build();
     }
 
-    private ImmutableMap<Long, PreloadItem> readPreloadEntriesFromCursor(List<PreloadItem> items) {
-        return Maps.uniqueIndex(items, PreloadItem::itemId);
-    }
-
     /**
      * Inserts the given entry blockingly into the database.
      */
@@ -112,25 +144,139 @@ public class DatabasePreloadManager implements PreloadManager {
         ContentValues values = new ContentValues();
         values.put("itemId", entry.itemId());
         values.put("creation", entry.creation().getMillis());
+        values.put("lastAccess", entry.lastAccess().getMillis());
         values.put("media", entry.media().getPath());
         values.put("thumbnail", entry.thumbnail().getPath());
+        values.put("size", entry.size());
         db().insert(TABLE_NAME, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+        synchronized (index) {
+            // the files were just written
+            index.put(entry.itemId(), entry);
+            validated.add(entry.itemId());
+
+            changes.onNext(new Change(new long[]{entry.itemId()}, true));
+        }
     }
 
     /**
-     * Checks if an entry with the given itemId already exists in the database.
+     * Checks if an entry with the given itemId exists. This does not touch the
+     * files of the item and returns false until the index is loaded.
      */
     @Override
     public boolean exists(long itemId) {
-        return preloadCache.get().containsKey(itemId);
+        synchronized (index) {
+            return index.containsKey(itemId);
+        }
     }
 
     /**
-     * Returns the {@link PreloadItem} with a given id.
+     * Returns the {@link PreloadItem} with a given id. The files of the item are
+     * checked on the first access, items with missing files are removed. The access
+     * is remembered and written to the database shortly after.
      */
     @Override
     public Optional<PreloadItem> get(long itemId) {
-        return Optional.fromNullable(preloadCache.get().get(itemId));
+        PreloadItem item;
+        synchronized (index) {
+            item = index.get(itemId);
+            if (item == null || validated.contains(itemId))
+                return recordAccess(item);
+        }
+
+        // check outside of the lock, this hits the file system.
+        boolean valid = item.thumbnail().exists() && item.media().exists();
+
+        synchronized (index) {
+            if (index.get(itemId) != item) {
+                // the item was replaced or removed in the meantime
+                return recordAccess(index.get(itemId));
+            }
+
+            if (valid) {
+                validated.add(itemId);
+                return recordAccess(item);
+            }
+
+            unindex(itemId);
+        }
+
+        // delete the missing entry in background.
+        logger.info("Files of preloaded item {} are missing", itemId);
+        this.database.subscribeOn(BackgroundScheduler.instance()).subscribe(db -> {
+            List<PreloadItem> items = Collections.singletonList(item);
+            try (BriteDatabase.Transaction tx = db.newTransaction()) {
+                deleteTx(db, items);
+                tx.markSuccessful();
+            }
+
+            removeItems(items);
+        }, AndroidUtility::logToCrashlytics);
+
+        return Optional.absent();
+    }
+
+    private Optional<PreloadItem> recordAccess(@Nullable PreloadItem item) {
+        if (item != null) {
+            synchronized (pendingAccessTimes) {
+                pendingAccessTimes.put(item.itemId(), System.currentTimeMillis());
+
+                // write all accesses of the next minute with one transaction.
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    Observable.timer(ACCESS_FLUSH_DELAY_SECONDS, TimeUnit.SECONDS, BackgroundScheduler.instance())
+                            .flatMap(ignored -> database)
+                            .subscribe(this::flushAccessTimes, AndroidUtility::logToCrashlytics);
+                }
+            }
+        }
+
+        return Optional.fromNullable(item);
+    }
+
+    @SuppressLint("NewApi")
+    private void flushAccessTimes(BriteDatabase db) {
+        try (BriteDatabase.Transaction tx = db.newTransaction()) {
+            writeAccessTimesTx(db);
+            tx.markSuccessful();
+        }
+    }
+
+    /**
+     * Removes the item from the index. Must be called while holding the index lock.
+     */
+    private void unindex(long itemId) {
+        validated.remove(itemId);
+
+        if (!loaded) {
+            removedWhileLoading.add(itemId);
+        }
+
+        if (index.remove(itemId) != null) {
+            changes.onNext(new Change(new long[]{itemId}, false));
+        }
+    }
+
+    /**
+     * Removes the items from the index and deletes their files.
+     * Must be called after their rows were deleted.
+     */
+    private void removeItems(List<PreloadItem> items) {
+        synchronized (index) {
+            for (PreloadItem item : items) {
+                unindex(item.itemId());
+            }
+        }
+
+        for (PreloadItem item : items) {
+            logger.info("Removing files for itemId={}", item.itemId());
+
+            if (item.media().exists() && !item.media().delete())
+                logger.warn("Could not delete media file {}", item.media());
+
+            if (item.thumbnail().exists() && !item.thumbnail().delete())
+                logger.warn("Could not delete thumbnail file {}", item.thumbnail());
+        }
     }
 
     @SuppressLint("NewApi")
@@ -140,8 +286,8 @@ public class DatabasePreloadManager implements PreloadManager {
 
         BriteDatabase db = db();
 
+        List<PreloadItem> items = new ArrayList<>();
         try (BriteDatabase.Transaction tx = db.newTransaction()) {
-            List<PreloadItem> items = new ArrayList<>();
             try (Cursor cursor = db.query("SELECT * FROM " + TABLE_NAME + " WHERE creation<?",
                     String.valueOf(threshold.getMillis()))) {
 
@@ -152,28 +298,145 @@ public class DatabasePreloadManager implements PreloadManager {
             deleteTx(db, items);
             tx.markSuccessful();
         }
+
+        removeItems(items);
     }
 
-    private void deleteTx(BriteDatabase db, Iterable<PreloadItem> items) {
+    @SuppressLint("NewApi")
+    @Override
+    public void evict(long maxSize) {
+        BriteDatabase db = db();
+
+        List<PreloadItem> items;
+        try (BriteDatabase.Transaction tx = db.newTransaction()) {
+            writeAccessTimesTx(db);
+
+            // items without files do not count and are removed with the evicted ones
+            items = computeMissingSizesTx(db);
+
+            long totalSize = 0;
+            try (Cursor cursor = db.query("SELECT SUM(size) FROM " + TABLE_NAME)) {
+                if (cursor.moveToFirst())
+                    totalSize = cursor.getLong(0);
+            }
+
+            logger.info("Preloaded items use {}kb of {}kb", totalSize / 1024, maxSize / 1024);
+
+            if (totalSize > maxSize) {
+                try (Cursor cursor = db.query("SELECT * FROM " + TABLE_NAME
+                        + " WHERE size>0 ORDER BY lastAccess / " + ACCESS_GRANULARITY_MILLIS + ", size DESC")) {
+
+                    while (totalSize > maxSize && cursor.moveToNext()) {
+                        PreloadItem item = readPreloadItem(cursor);
+                        totalSize -= item.size();
+                        items.add(item);
+                    }
+                }
+            }
+
+            deleteTx(db, items);
+            tx.markSuccessful();
+        }
+
+        removeItems(items);
+    }
+
+    private void writeAccessTimesTx(BriteDatabase db) {
+        Map<Long, Long> accessTimes;
+        synchronized (pendingAccessTimes) {
+            accessTimes = ImmutableMap.copyOf(pendingAccessTimes);
+            pendingAccessTimes.clear();
+            flushScheduled = false;
+        }
+
+        for (Map.Entry<Long, Long> access : accessTimes.entrySet()) {
+            ContentValues values = new ContentValues();
+            values.put("lastAccess", access.getValue());
+            db.update(TABLE_NAME, values, "itemId=?", String.valueOf(access.getKey()));
+        }
+    }
+
+    /**
+     * Items stored by an older version of the app do not know their size yet.
+     * Returns the items whose files are missing, they must be deleted, so they
+     * are not checked again on the next eviction.
+     */
+    @SuppressLint("NewApi")
+    private List<PreloadItem> computeMissingSizesTx(BriteDatabase db) {
+        List<PreloadItem> items = new ArrayList<>();
+        try (Cursor cursor = db.query("SELECT * FROM " + TABLE_NAME + " WHERE size=0")) {
+            while (cursor.moveToNext())
+                items.add(readPreloadItem(cursor));
+        }
+
+        List<PreloadItem> missing = new ArrayList<>();
         for (PreloadItem item : items) {
-            logger.info("Removing files for itemId={}", item.itemId());
+            long size = item.media().length() + item.thumbnail().length();
+            if (size == 0 || !item.media().exists() || !item.thumbnail().exists()) {
+                missing.add(item);
+                continue;
+            }
 
-            if (!item.media().delete())
-                logger.warn("Could not delete media file {}", item.media());
+            ContentValues values = new ContentValues();
+            values.put("size", size);
+            db.update(TABLE_NAME, values, "itemId=?", String.valueOf(item.itemId()));
+        }
 
-            if (!item.thumbnail().delete())
-                logger.warn("Could not delete thumbnail file {}", item.thumbnail());
+        return missing;
+    }
 
-            // delete entry from database
-            db.delete(TABLE_NAME, "itemId=?", String.valueOf(item.itemId()));
+    /**
+     * Deletes the rows of the given items. The index and the files are only
+     * updated by {@link #removeItems(List)} once the transaction is committed.
+     */
+    private void deleteTx(BriteDatabase db, List<PreloadItem> items) {
+        // delete the entries from the database in batches
+        for (List<PreloadItem> batch : Lists.partition(items, DELETE_BATCH_SIZE)) {
+            String[] itemIds = new String[batch.size()];
+            for (int idx = 0; idx < batch.size(); idx++) {
+                itemIds[idx] = String.valueOf(batch.get(idx).itemId());
+            }
+
+            String placeholders = Joiner.on(",").join(Collections.nCopies(itemIds.length, "?"));
+            db.delete(TABLE_NAME, "itemId IN (" + placeholders + ")", itemIds);
         }
     }
 
     /**
-     * Returns a list of all preloaded items.
+     * Returns all preloaded items, once the index is loaded and again after every change.
      */
+    @Override
     public Observable<ImmutableCollection<PreloadItem>> all() {
-        return queryAllItems().map(ImmutableMap::values);
+        return changes()
+                .filter(ignored -> isLoaded())
+                .map(ignored -> snapshot());
+    }
+
+    /**
+     * Emits all indexed items as added and then every change of the index. The
+     * changes are emitted on the thread that modified the index.
+     */
+    @Override
+    public Observable<Change> changes() {
+        return Observable.create(subscriber -> {
+            // no change can slip in between the current state and the subscription
+            synchronized (index) {
+                subscriber.onNext(new Change(index.keys(), true));
+                changes.unsafeSubscribe(subscriber);
+            }
+        });
+    }
+
+    private boolean isLoaded() {
+        synchronized (index) {
+            return loaded;
+        }
+    }
+
+    private ImmutableCollection<PreloadItem> snapshot() {
+        synchronized (index) {
+            return ImmutableList.copyOf(index.valueCollection());
+        }
     }
 
     private BriteDatabase db() {
@@ -186,7 +449,35 @@ public class DatabasePreloadManager implements PreloadManager {
                 "id INTEGER PRIMARY KEY AUTOINCREMENT," +
                 "itemId INT NOT NULL UNIQUE," +
                 "creation INT NOT NULL," +
+                "lastAccess INT NOT NULL DEFAULT 0," +
                 "media TEXT NOT NULL," +
-                "thumbnail TEXT NOT NULL)");
+                "thumbnail TEXT NOT NULL," +
+                "size INT NOT NULL DEFAULT 0)");
+    }
+
+    public static void onUpgrade(SQLiteDatabase db) {
+        if (!hasColumn(db, "lastAccess")) {
+            logger.info("Adding lastAccess column to preload table");
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN lastAccess INT NOT NULL DEFAULT 0");
+            db.execSQL("UPDATE " + TABLE_NAME + " SET lastAccess=creation");
+        }
+
+        if (!hasColumn(db, "size")) {
+            logger.info("Adding size column to preload table");
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN size INT NOT NULL DEFAULT 0");
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private static boolean hasColumn(SQLiteDatabase db, String column) {
+        try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + TABLE_NAME + ")", null)) {
+            int cName = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(cName)))
+                    return true;
+            }
+        }
+
+        return false;
     }
 }
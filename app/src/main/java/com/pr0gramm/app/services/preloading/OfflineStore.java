@@ -0,0 +1,349 @@
+package com.pr0gramm.app.services.preloading;
+
+import android.content.Context;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import com.google.gson.Gson;
+import com.pr0gramm.app.Settings;
+import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.api.pr0gramm.ImmutableApi;
+import com.pr0gramm.app.feed.ContentType;
+import com.pr0gramm.app.feed.FeedFilter;
+import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.feed.FeedService;
+import com.pr0gramm.app.feed.FeedType;
+import com.pr0gramm.app.feed.ImmutableFeedQuery;
+
+import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import static com.pr0gramm.app.feed.FeedCache.keyOf;
+
+/**
+ * Stores the feed and the post details of preloaded items, so that a preloaded
+ * feed can be browsed without any network connection. The media of the items is
+ * resolved by the {@link PreloadManager}.
+ * <p>
+ * A feed is stored as one page that contains all of its preloaded items. Queries
+ * for older or newer items are answered by filtering this page.
+ */
+@Singleton
+public class OfflineStore {
+    private static final Logger logger = LoggerFactory.getLogger("OfflineStore");
+
+    private final File directory;
+    private final Gson gson;
+    private final Settings settings;
+
+    private final Object lock = new Object();
+
+    @Inject
+    public OfflineStore(Context context, Gson gson, Settings settings) {
+        this.directory = new File(context.getCacheDir(), "preload-api");
+        this.gson = gson;
+        this.settings = settings;
+    }
+
+    /**
+     * Adds the given items to the offline page of the feed. Items that are already
+     * stored are replaced. This method performs disk io.
+     */
+    public void storeFeed(FeedFilter filter, Set<ContentType> contentTypes, List<FeedItem> items) {
+        FeedType feedType = filter.getFeedType();
+        File file = feedFile(filter, contentTypes);
+
+        synchronized (lock) {
+            // the new version of an item replaces the stored one
+            List<Api.Feed.Item> stored = read(file, Api.Feed.class)
+                    .transform(Api.Feed::getItems)
+                    .or(ImmutableList.of());
+
+            Map<Long, Api.Feed.Item> merged = new LinkedHashMap<>();
+            for (Api.Feed.Item item : stored) {
+                merged.put(item.getId(), item);
+            }
+
+            for (FeedItem item : items) {
+                merged.put(item.id(), new PreloadedItem(item));
+            }
+
+            List<Api.Feed.Item> sorted = new ArrayList<>(merged.values());
+            if (feedType.sortable()) {
+                Collections.sort(sorted, (lhs, rhs) ->
+                        Long.compare(feedTypeId(feedType, rhs), feedTypeId(feedType, lhs)));
+            }
+
+            Api.Feed feed = ImmutableApi.Feed.builder()
+                    .atStart(true)
+                    .atEnd(true)
+                    .addAllItems(sorted)
+                    .build();
+
+            write(file, feed, Api.Feed.class);
+        }
+    }
+
+    /**
+     * Returns the stored items matching the given query. This method performs disk io.
+     */
+    public Optional<Api.Feed> feed(FeedService.FeedQuery query) {
+        Optional<Api.Feed> stored = read(feedFile(query.feedFilter(), query.contentTypes()), Api.Feed.class);
+        if (!stored.isPresent())
+            return Optional.absent();
+
+        FeedType feedType = query.feedFilter().getFeedType();
+        boolean paged = query.older().isPresent() || query.newer().isPresent();
+        if (paged && !feedType.sortable()) {
+            // we can not page through a feed without a stable order, all items were in the first page.
+            return Optional.of(emptyFeed());
+        }
+
+        List<Api.Feed.Item> items = FluentIterable.from(stored.get().getItems())
+                .filter(item -> !query.older().isPresent() || feedTypeId(feedType, item) < query.older().get())
+                .filter(item -> !query.newer().isPresent() || feedTypeId(feedType, item) > query.newer().get())
+                .toList();
+
+        return Optional.<Api.Feed>of(ImmutableApi.Feed.builder()
+                .atStart(true)
+                .atEnd(true)
+                .addAllItems(items)
+                .build());
+    }
+
+    /**
+     * Stores the details of a post. This method performs disk io.
+     */
+    public void storePost(long itemId, Api.Post post) {
+        write(postFile(itemId), post, Api.Post.class);
+    }
+
+    /**
+     * Checks if the details of a post are stored.
+     */
+    public boolean hasPost(long itemId) {
+        return postFile(itemId).exists();
+    }
+
+    /**
+     * Returns the stored details of a post. This method performs disk io.
+     */
+    public Optional<Api.Post> post(long itemId) {
+        return read(postFile(itemId), Api.Post.class);
+    }
+
+    /**
+     * Removes the posts and feed items of all items that are no longer preloaded.
+     * This method performs disk io.
+     */
+    public void retainAll(Iterable<PreloadManager.PreloadItem> preloaded) {
+        TLongSet itemIds = new TLongHashSet();
+        for (PreloadManager.PreloadItem item : preloaded) {
+            itemIds.add(item.itemId());
+        }
+
+        synchronized (lock) {
+            File[] files = directory.listFiles();
+            if (files == null)
+                return;
+
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith("post-")) {
+                    Long itemId = Longs.tryParse(name.substring(5, name.length() - 5));
+                    if (itemId == null || !itemIds.contains(itemId)) {
+                        delete(file);
+                    }
+
+                } else if (name.startsWith("feed-")) {
+                    retainFeedItems(file, itemIds);
+                }
+            }
+        }
+    }
+
+    private void retainFeedItems(File file, TLongSet itemIds) {
+        Optional<Api.Feed> feed = read(file, Api.Feed.class);
+        if (!feed.isPresent())
+            return;
+
+        List<Api.Feed.Item> items = FluentIterable.from(feed.get().getItems())
+                .filter(item -> itemIds.contains(item.getId()))
+                .toList();
+
+        if (items.isEmpty()) {
+            delete(file);
+
+        } else if (items.size() < feed.get().getItems().size()) {
+            write(file, ImmutableApi.Feed.copyOf(feed.get()).withItems(items), Api.Feed.class);
+        }
+    }
+
+    private <T> Optional<T> read(File file, Class<T> type) {
+        synchronized (lock) {
+            if (!file.exists())
+                return Optional.absent();
+
+            try (Reader reader = Files.newReader(file, Charsets.UTF_8)) {
+                return Optional.fromNullable(gson.fromJson(reader, type));
+
+            } catch (Exception error) {
+                logger.warn("Could not read offline data, removing it", error);
+                delete(file);
+                return Optional.absent();
+            }
+        }
+    }
+
+    private <T> void write(File file, T value, Class<T> type) {
+        synchronized (lock) {
+            try {
+                if (!directory.exists() && !directory.mkdirs())
+                    throw new IOException("Could not create directory " + directory);
+
+                File temp = new File(directory, file.getName() + ".tmp");
+                try (Writer writer = Files.newWriter(temp, Charsets.UTF_8)) {
+                    gson.toJson(value, type, writer);
+                }
+
+                if (!temp.renameTo(file))
+                    throw new IOException("Could not rename " + temp + " to " + file);
+
+            } catch (Exception error) {
+                logger.warn("Could not write offline data", error);
+            }
+        }
+    }
+
+    private File feedFile(FeedFilter filter, Set<ContentType> contentTypes) {
+        String key = keyOf(ImmutableFeedQuery.builder()
+                .feedFilter(filter)
+                .contentTypes(contentTypes)
+                .build(), settings.bestOfBenisThreshold());
+
+        String name = Hashing.sha1().hashString(key, Charsets.UTF_8).toString();
+        return new File(directory, "feed-" + name + ".json");
+    }
+
+    private File postFile(long itemId) {
+        return new File(directory, "post-" + itemId + ".json");
+    }
+
+    private static Api.Feed emptyFeed() {
+        return ImmutableApi.Feed.builder().atStart(true).atEnd(true).build();
+    }
+
+    private static long feedTypeId(FeedType type, Api.Feed.Item item) {
+        return type == FeedType.PROMOTED ? item.getPromoted() : item.getId();
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            logger.warn("Could not delete {}", file);
+        }
+    }
+
+    /**
+     * Exposes a {@link FeedItem} as the api item it was created from.
+     */
+    private static final class PreloadedItem implements Api.Feed.Item {
+        private final FeedItem item;
+
+        PreloadedItem(FeedItem item) {
+            this.item = item;
+        }
+
+        @Override
+        public long getId() {
+            return item.id();
+        }
+
+        @Override
+        public long getPromoted() {
+            return item.promotedId();
+        }
+
+        @Override
+        public String getImage() {
+            return item.image();
+        }
+
+        @Override
+        public String getThumb() {
+            return item.thumbnail();
+        }
+
+        @Override
+        public String getFullsize() {
+            return item.fullsize();
+        }
+
+        @Override
+        public String getUser() {
+            return item.user();
+        }
+
+        @Override
+        public int getUp() {
+            return item.up();
+        }
+
+        @Override
+        public int getDown() {
+            return item.down();
+        }
+
+        @Override
+        public int getMark() {
+            return item.mark();
+        }
+
+        @Override
+        public int getFlags() {
+            return item.flags();
+        }
+
+        @Override
+        public Optional<Integer> width() {
+            return item.width() > 0 ? Optional.of(item.width()) : Optional.absent();
+        }
+
+        @Override
+        public Optional<Integer> height() {
+            return item.height() > 0 ? Optional.of(item.height()) : Optional.absent();
+        }
+
+        @Override
+        public Optional<Boolean> audio() {
+            return Optional.of(item.audio());
+        }
+
+        @Override
+        public Instant getCreated() {
+            return item.created();
+        }
+    }
+}
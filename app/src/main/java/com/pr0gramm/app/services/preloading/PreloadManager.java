@@ -21,8 +21,35 @@ public interface PreloadManager {
 
     void deleteBefore(Instant threshold);
 
+    /**
+     * Removes the least recently used items until all items fit into the given number of bytes.
+     */
+    void evict(long maxSize);
+
+    /**
+     * Emits all preloaded items, once they are known and again after every change.
+     */
     Observable<ImmutableCollection<PreloadItem>> all();
 
+    /**
+     * Emits the currently preloaded items as added, followed by every change
+     * of the set of preloaded items.
+     */
+    Observable<Change> changes();
+
+    /**
+     * Some items were added to or removed from the preloaded items.
+     */
+    final class Change {
+        public final long[] itemIds;
+        public final boolean preloaded;
+
+        public Change(long[] itemIds, boolean preloaded) {
+            this.itemIds = itemIds;
+            this.preloaded = preloaded;
+        }
+    }
+
     /**
      */
     @Value.Immutable
@@ -31,8 +58,15 @@ public interface PreloadManager {
 
         Instant creation();
 
+        Instant lastAccess();
+
         File media();
 
         File thumbnail();
+
+        /**
+         * Size of media and thumbnail in bytes.
+         */
+        long size();
     }
 }
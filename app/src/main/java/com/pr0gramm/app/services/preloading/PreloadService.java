@@ -8,14 +8,22 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.PowerManager;
+import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 
 import com.google.common.base.Joiner;
-import com.google.common.base.Throwables;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.pr0gramm.app.Dagger;
 import com.pr0gramm.app.R;
+import com.pr0gramm.app.Settings;
+import com.pr0gramm.app.api.pr0gramm.Api;
+import com.pr0gramm.app.feed.ContentType;
+import com.pr0gramm.app.feed.Feed;
+import com.pr0gramm.app.feed.FeedFilter;
 import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.io.DownloadScheduler;
 import com.pr0gramm.app.services.NotificationService;
 import com.pr0gramm.app.services.UriHelper;
 import com.pr0gramm.app.util.AndroidUtility;
@@ -28,15 +36,25 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 import rx.functions.Action1;
 
 import static com.google.common.collect.Lists.newArrayList;
@@ -50,8 +68,16 @@ import static org.joda.time.Minutes.minutes;
 public class PreloadService extends IntentService {
     private static final Logger logger = LoggerFactory.getLogger("PreloadService");
     private static final String EXTRA_LIST_OF_ITEMS = "PreloadService.listOfItems";
+    private static final String EXTRA_FEED_FILTER = "PreloadService.feedFilter";
+    private static final String EXTRA_CONTENT_TYPES = "PreloadService.contentTypes";
     private static final String EXTRA_CANCEL = "PreloadService.cancel";
 
+    private static final int MAX_PARALLEL = 4;
+    private static final int MAX_PARALLEL_PER_HOST = 2;
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
     private long jobId;
     private long lastShown;
     private volatile boolean canceled;
@@ -68,8 +94,20 @@ public class PreloadService extends IntentService {
     @Inject
     PowerManager powerManager;
 
+    @Inject
+    DownloadScheduler downloadScheduler;
+
+    @Inject
+    Api api;
+
+    @Inject
+    OfflineStore offlineStore;
+
     private File preloadCache;
 
+    // limits the number of parallel downloads per host, guarded by itself.
+    private final Map<String, Semaphore> hostSlots = new HashMap<>();
+
     public PreloadService() {
         super("PreloadService");
     }
@@ -101,6 +139,9 @@ public class PreloadService extends IntentService {
         if (items == null || items.isEmpty())
             return;
 
+        FeedFilter feedFilter = intent.getParcelableExtra(EXTRA_FEED_FILTER);
+        Set<ContentType> contentTypes = ContentType.decompose(intent.getIntExtra(EXTRA_CONTENT_TYPES, 0));
+
         jobId = System.currentTimeMillis();
         canceled = false;
 
@@ -111,7 +152,7 @@ public class PreloadService extends IntentService {
         NotificationCompat.Builder noBuilder = new NotificationCompat.Builder(this)
                 .setContentTitle("Preloading pr0gramm")
                 .setSmallIcon(R.drawable.ic_notify_new_message)
-                .setProgress(100 * items.size(), 0, false)
+                .setProgress(200 * items.size(), 0, false)
                 .setOngoing(true)
                 .setContentIntent(contentIntent);
 
@@ -129,51 +170,63 @@ public class PreloadService extends IntentService {
             logger.info("Acquire wake lock for at most 10 minutes");
             wakeLock.acquire(minutes(10).toStandardDuration().getMillis());
 
-            int failed = 0, downloaded = 0;
-            for (int idx = 0; idx < items.size() && !canceled; idx++) {
-                if (AndroidUtility.isOnMobile(this))
-                    break;
+            Progress progress = new Progress(noBuilder, 2 * items.size());
+            AtomicInteger failed = new AtomicInteger(), downloaded = new AtomicInteger();
+            boolean[] preloaded = new boolean[items.size()];
 
-                FeedItem item = items.get(idx);
-                try {
-                    Uri mediaUri = uriHelper.media(item);
-                    boolean mediaIsLocal = "file".equals(mediaUri.getScheme());
-                    File mediaFile = mediaIsLocal ? toFile(mediaUri) : cacheFileForUri(mediaUri);
+            ExecutorService executor = Executors.newFixedThreadPool(MAX_PARALLEL, new ThreadFactoryBuilder()
+                    .setNameFormat("PreloadService-%d")
+                    .build());
 
-                    Uri thumbUri = uriHelper.thumbnail(item);
-                    boolean thumbIsLocal = "file".equals(thumbUri.getScheme());
-                    File thumbFile = thumbIsLocal ? toFile(thumbUri) : cacheFileForUri(thumbUri);
-
-                    // prepare the entry that will be put into the database later
-                    PreloadManager.PreloadItem entry = ImmutablePreloadItem.builder()
-                            .itemId(item.id())
-                            .creation(creation)
-                            .media(mediaFile)
-                            .thumbnail(thumbFile)
-                            .build();
+            try {
+                List<Future<?>> tasks = new ArrayList<>();
+                for (int idx = 0; idx < items.size(); idx++) {
+                    FeedItem item = items.get(idx);
 
-                    maybeShow(noBuilder.setProgress(items.size(), idx, false));
+                    Uri mediaUri = uriHelper.media(item);
+                    Uri thumbUri = uriHelper.thumbnail(item);
 
-                    if (!mediaIsLocal)
-                        download(noBuilder, 2 * idx, 2 * items.size(), mediaUri, entry.media());
+                    int index = idx;
+                    tasks.add(executor.submit(() -> {
+                        if (canceled || AndroidUtility.isOnMobile(this))
+                            return;
+
+                        try {
+                            preload(progress, 2 * index, item, creation, mediaUri, thumbUri);
+                            downloaded.incrementAndGet();
+                            preloaded[index] = true;
+
+                        } catch (IOException ioError) {
+                            failed.incrementAndGet();
+                            logger.warn("Could not preload image id=" + item.id(), ioError);
+                        }
+                    }));
+                }
 
-                    if (!thumbIsLocal)
-                        download(noBuilder, 2 * idx + 1, 2 * items.size(), thumbUri, entry.thumbnail());
+                for (Future<?> task : tasks) {
+                    Futures.getUnchecked(task);
+                }
 
-                    preloadManager.store(entry);
+            } finally {
+                executor.shutdownNow();
+            }
 
-                    downloaded += 1;
-                } catch (IOException ioError) {
-                    failed += 1;
-                    logger.warn("Could not preload image id=" + item.id(), ioError);
+            // the futures make the results of the tasks visible to this thread.
+            if (feedFilter != null) {
+                List<FeedItem> preloadedItems = new ArrayList<>();
+                for (int idx = 0; idx < items.size(); idx++) {
+                    if (preloaded[idx])
+                        preloadedItems.add(items.get(idx));
                 }
+
+                offlineStore.storeFeed(feedFilter, contentTypes, preloadedItems);
             }
 
             // doing cleanup
-            doCleanup(noBuilder, Instant.now().minus(standardDays(1)));
+            doCleanup(noBuilder, Settings.of(this).preloadBudget(), Instant.now().minus(standardDays(1)));
 
             // setting end message
-            showEndMessage(noBuilder, downloaded, failed);
+            showEndMessage(noBuilder, downloaded.get(), failed.get());
 
         } catch (Throwable error) {
             AndroidUtility.logToCrashlytics(error);
@@ -212,19 +265,75 @@ public class PreloadService extends IntentService {
     }
 
     /**
-     * Cleaning old files before the given threshold.
+     * Evicts the least recently used items until the preloaded files fit into the
+     * budget. Partial files are removed if they were not touched since the threshold.
      */
-    private void doCleanup(NotificationCompat.Builder noBuilder, Instant threshold) {
+    private void doCleanup(NotificationCompat.Builder noBuilder, long budget, Instant threshold) {
         show(noBuilder
                 .setContentText("Cleaning up old files")
                 .setProgress(0, 0, true));
 
-        preloadManager.deleteBefore(threshold);
+        preloadManager.evict(budget);
+        offlineStore.retainAll(preloadManager.all().toBlocking().first());
+
+        // remove partial files that were not resumed for a long time
+        File[] files = preloadCache.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp") && file.lastModified() < threshold.getMillis()) {
+                    logger.info("Removing stale partial file {}", file);
+                    if (!file.delete())
+                        logger.warn("Could not remove stale partial file {}", file);
+                }
+            }
+        }
     }
 
-    private void download(NotificationCompat.Builder noBuilder, int index, int total,
-                          Uri uri, File targetFile) throws IOException {
+    /**
+     * Downloads media, thumbnail and the post details of the given item and stores the
+     * item in the database. The progress of the media is reported at the given index,
+     * the thumbnail follows.
+     */
+    private void preload(Progress progress, int index, FeedItem item, Instant creation,
+                         Uri mediaUri, Uri thumbUri) throws IOException {
+
+        boolean mediaIsLocal = "file".equals(mediaUri.getScheme());
+        File mediaFile = mediaIsLocal ? toFile(mediaUri) : cacheFileForUri(mediaUri);
+
+        boolean thumbIsLocal = "file".equals(thumbUri.getScheme());
+        File thumbFile = thumbIsLocal ? toFile(thumbUri) : cacheFileForUri(thumbUri);
+
+        if (!mediaIsLocal)
+            download(progress, index, mediaUri, mediaFile);
+
+        progress.update(index, 1, null);
 
+        if (!thumbIsLocal)
+            download(progress, index + 1, thumbUri, thumbFile);
+
+        progress.update(index + 1, 1, null);
+
+        if (!offlineStore.hasPost(item.id())) {
+            try {
+                offlineStore.storePost(item.id(), api.info(item.id()).toBlocking().single());
+            } catch (RuntimeException error) {
+                // the item can still be viewed, just without tags and comments
+                logger.warn("Could not load post details of item id=" + item.id(), error);
+            }
+        }
+
+        // put the entry with the size of the downloaded files into the database
+        preloadManager.store(ImmutablePreloadItem.builder()
+                .itemId(item.id())
+                .creation(creation)
+                .lastAccess(creation)
+                .media(mediaFile)
+                .thumbnail(thumbFile)
+                .size(mediaFile.length() + thumbFile.length())
+                .build());
+    }
+
+    private void download(Progress progress, int index, Uri uri, File targetFile) throws IOException {
         // if the file exists, we dont need to download it again
         if (targetFile.exists()) {
             logger.info("File {} already exists", targetFile);
@@ -235,32 +344,59 @@ public class PreloadService extends IntentService {
             return;
         }
 
+        // a partial file of an earlier run is resumed and kept for the next run on errors.
         File tempFile = new File(targetFile.getPath() + ".tmp");
+
+        Semaphore hostSlot = hostSlot(uri.getHost());
+        hostSlot.acquireUninterruptibly();
         try {
-            download(uri, tempFile, progress -> {
-                String msg;
-                int progressCurrent = (int) (100 * (index + progress));
-                int progressTotal = 100 * total;
-
-                if (canceled) {
-                    msg = "Finishing";
-                } else {
-                    msg = "Fetching " + uri.getPath();
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    download(uri, tempFile, value -> {
+                        String msg = canceled ? "Finishing" : "Fetching " + uri.getPath();
+                        progress.update(index, value, msg);
+                    });
+
+                    break;
+
+                } catch (NotRetryableException error) {
+                    if (!tempFile.delete())
+                        logger.warn("Could not remove temporary file");
+
+                    throw error;
+
+                } catch (IOException error) {
+                    if (canceled || attempt >= MAX_ATTEMPTS)
+                        throw error;
+
+                    long delay = RETRY_DELAY_MILLIS << (attempt - 1);
+                    logger.warn("Download of {} failed, retry in {}ms: {}", uri, delay, error.toString());
+
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException err) {
+                        throw new InterruptedIOException("Interrupted while waiting for retry");
+                    }
                 }
+            }
 
-                maybeShow(noBuilder.setContentText(msg).setProgress(progressTotal, progressCurrent, false));
-            });
+        } finally {
+            hostSlot.release();
+        }
 
-            if (!tempFile.renameTo(targetFile))
-                throw new IOException("Could not rename file");
+        if (!tempFile.renameTo(targetFile))
+            throw new IOException("Could not rename file");
+    }
 
-        } catch (Throwable error) {
-            if (!tempFile.delete())
-                logger.warn("Could not remove temporary file");
+    private Semaphore hostSlot(String host) {
+        synchronized (hostSlots) {
+            Semaphore slot = hostSlots.get(host);
+            if (slot == null) {
+                slot = new Semaphore(MAX_PARALLEL_PER_HOST);
+                hostSlots.put(host, slot);
+            }
 
-            Throwables.propagateIfInstanceOf(error, IOException.class);
-            Throwables.propagateIfPossible(error);
-            throw Throwables.propagate(error);
+            return slot;
         }
     }
 
@@ -276,28 +412,63 @@ public class PreloadService extends IntentService {
         }
     }
 
+    /**
+     * Downloads the uri into the target file. If the target file already contains
+     * some bytes, only the remaining bytes are requested using a range request.
+     */
     @SuppressLint("NewApi")
     private void download(Uri uri, File targetFile, Action1<Float> progress) throws IOException {
-        logger.info("Start downloading {} to {}", uri, targetFile);
+        long offset = targetFile.length();
+        logger.info("Start downloading {} to {} at offset {}", uri, targetFile, offset);
+
+        // preloading only gets the bandwidth that nobody else needs.
+        try (DownloadScheduler.Transfer transfer = downloadScheduler.register(DownloadScheduler.Priority.PRELOAD)) {
+            transfer.awaitTurn();
 
-        Request request = new Request.Builder().get().url(uri.toString()).build();
-        Response response = httpClient.newCall(request).execute();
+            Request.Builder request = new Request.Builder().get().url(uri.toString());
+            if (offset > 0) {
+                request.header("Range", "bytes=" + offset + "-");
+            }
 
-        long contentLength = response.body().contentLength();
+            Response response = httpClient.newCall(request.build()).execute();
+            try (ResponseBody body = response.body()) {
+                if (response.code() == 416 || response.code() == 206 && !rangeStartsAt(response, offset)) {
+                    // the partial file does not match the resource, start over.
+                    if (!targetFile.delete())
+                        logger.warn("Could not remove partial file");
 
-        try (InputStream inputStream = response.body().byteStream()) {
-            try (OutputStream outputStream = new FileOutputStream(targetFile)) {
-                if (contentLength < 0) {
-                    progress.call(0.0f);
-                    ByteStreams.copy(inputStream, outputStream);
-                    progress.call(1.0f);
-                } else {
-                    copyWithProgress(progress, contentLength, inputStream, outputStream);
+                    throw new IOException("Could not resume download of " + uri);
+                }
+
+                if (response.code() >= 400 && response.code() < 500)
+                    throw new NotRetryableException("Download of " + uri + " failed with status " + response.code());
+
+                if (!response.isSuccessful())
+                    throw new IOException("Download of " + uri + " failed with status " + response.code());
+
+                // the server might ignore the range request and send everything
+                boolean append = response.code() == 206;
+                if (!append)
+                    offset = 0;
+
+                long contentLength = body.contentLength();
+                long totalLength = contentLength >= 0 ? offset + contentLength : -1;
+
+                try (InputStream inputStream = body.byteStream()) {
+                    try (OutputStream outputStream = new FileOutputStream(targetFile, append)) {
+                        progress.call(totalLength > 0 ? (float) offset / totalLength : 0.0f);
+                        copyWithProgress(progress, offset, totalLength, transfer, inputStream, outputStream);
+                        progress.call(1.0f);
+                    }
                 }
             }
         }
     }
 
+    private static boolean rangeStartsAt(Response response, long offset) {
+        String contentRange = response.header("Content-Range");
+        return contentRange != null && contentRange.startsWith("bytes " + offset + "-");
+    }
 
     /**
      * Name of the cache file for the given {@link Uri}.
@@ -308,28 +479,71 @@ public class PreloadService extends IntentService {
     }
 
     /**
-     * Copies from the input stream to the output stream.
-     * The progress is written to the given observable.
+     * Copies from the input stream to the output stream. The progress is written to
+     * the given observable, if the content length is known. Before each chunk, the
+     * transfer waits until more important downloads leave some bandwidth.
      */
     private static void copyWithProgress(
-            Action1<Float> progress, long contentLength,
+            Action1<Float> progress, long offset, long contentLength, DownloadScheduler.Transfer transfer,
             InputStream inputStream, OutputStream outputStream) throws IOException {
 
-        long totalCount = 0;
+        long totalCount = offset;
         byte[] buffer = new byte[1024 * 64];
 
         int count;
-        while ((count = ByteStreams.read(inputStream, buffer, 0, buffer.length)) > 0) {
+        while (true) {
+            transfer.awaitTurn();
+
+            if ((count = ByteStreams.read(inputStream, buffer, 0, buffer.length)) <= 0)
+                break;
+
             outputStream.write(buffer, 0, count);
 
             totalCount += count;
-            progress.call((float) totalCount / contentLength);
+            if (contentLength > 0) {
+                progress.call((float) totalCount / contentLength);
+            }
+        }
+    }
+
+    /**
+     * Sums up the progress of all files of a preload run and reports it to the notification.
+     */
+    private final class Progress {
+        private final NotificationCompat.Builder noBuilder;
+        private final float[] values;
+        private float sum;
+
+        Progress(NotificationCompat.Builder noBuilder, int fileCount) {
+            this.noBuilder = noBuilder;
+            this.values = new float[fileCount];
+        }
+
+        synchronized void update(int index, float value, @Nullable String message) {
+            sum += value - values[index];
+            values[index] = value;
+
+            if (message != null)
+                noBuilder.setContentText(message);
+
+            maybeShow(noBuilder.setProgress(100 * values.length, (int) (100 * sum), false));
+        }
+    }
+
+    /**
+     * The server rejected the request, retrying it would not help.
+     */
+    private static class NotRetryableException extends IOException {
+        NotRetryableException(String message) {
+            super(message);
         }
     }
 
-    public static Intent newIntent(Context context, Iterable<FeedItem> items) {
+    public static Intent newIntent(Context context, Feed feed) {
         Intent intent = new Intent(context, PreloadService.class);
-        intent.putParcelableArrayListExtra(EXTRA_LIST_OF_ITEMS, newArrayList(items));
+        intent.putParcelableArrayListExtra(EXTRA_LIST_OF_ITEMS, newArrayList(feed.getItems()));
+        intent.putExtra(EXTRA_FEED_FILTER, feed.getFeedFilter());
+        intent.putExtra(EXTRA_CONTENT_TYPES, ContentType.combine(feed.getContentType()));
         return intent;
     }
 }
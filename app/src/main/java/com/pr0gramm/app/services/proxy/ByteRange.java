@@ -0,0 +1,74 @@
+package com.pr0gramm.app.services.proxy;
+
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Optional;
+import com.google.common.primitives.Longs;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single byte range as requested in a http <code>Range</code> header.
+ * A negative start describes a suffix range of the last <code>-start</code> bytes.
+ */
+final class ByteRange {
+    private static final Pattern PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final long first;
+    private final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses the given header value. Multiple ranges are not supported, in this
+     * case an empty optional is returned and the full body will be sent.
+     */
+    static Optional<ByteRange> parse(@Nullable String header) {
+        if (header == null)
+            return Optional.absent();
+
+        Matcher matcher = PATTERN.matcher(header.trim());
+        if (!matcher.matches())
+            return Optional.absent();
+
+        Long first = Longs.tryParse(matcher.group(1));
+        Long last = Longs.tryParse(matcher.group(2));
+        if (first == null && last == null)
+            return Optional.absent();
+
+        if (first == null) {
+            // suffix range
+            return Optional.of(new ByteRange(-last, -1));
+        }
+
+        return Optional.of(new ByteRange(first, last != null ? last : -1));
+    }
+
+    /**
+     * Checks if this range starts behind the given position. Suffix ranges
+     * are relative to the end and are never considered to start behind a position.
+     */
+    boolean startsAfter(long position) {
+        return first > position;
+    }
+
+    long start(long totalLength) {
+        return first >= 0 ? first : Math.max(0, totalLength + first);
+    }
+
+    long end(long totalLength) {
+        return first >= 0 && last >= 0 ? Math.min(last, totalLength - 1) : totalLength - 1;
+    }
+
+    @Override
+    public String toString() {
+        if (first < 0)
+            return "bytes=" + first;
+
+        return "bytes=" + first + "-" + (last >= 0 ? String.valueOf(last) : "");
+    }
+}
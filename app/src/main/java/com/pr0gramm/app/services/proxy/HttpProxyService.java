@@ -1,63 +1,120 @@
 package com.pr0gramm.app.services.proxy;
 
 import android.net.Uri;
-import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
 import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
-import com.google.common.io.ByteStreams;
-import com.google.common.primitives.Ints;
-import com.pr0gramm.app.BuildConfig;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.pr0gramm.app.io.MediaCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import fi.iki.elonen.NanoHTTPD;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okio.BufferedSource;
 
 import static com.google.common.base.MoreObjects.firstNonNull;
 import static com.pr0gramm.app.util.AndroidUtility.toFile;
 import static java.lang.System.currentTimeMillis;
 
 /**
+ * A small http server on the loopback interface. All connections are handled by one
+ * selector thread. Files from the {@link MediaCache} and local files are sent using
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so their bytes never
+ * pass through the java heap. Blocking work, like waiting for the response of the
+ * server, is done by a small pool of worker threads. Reads from upstream responses
+ * have their own pool, so slow servers can not delay new requests. Connections that
+ * wait for the media cache are woken up by its write notifications.
  */
 @Singleton
-public class HttpProxyService extends NanoHTTPD implements ProxyService {
+public class HttpProxyService implements ProxyService {
     private static final Logger logger = LoggerFactory.getLogger("HttpProxyService");
 
-    private static final Response ERROR_RESPONSE = newFixedLengthResponse(
-            Response.Status.INTERNAL_ERROR, "text/plain", null);
+    private static final int MAX_REQUEST_SIZE = 8 * 1024;
+
+    private static final int MAX_WORKERS = 4;
+    private static final int MAX_READERS = 2;
 
     private final String nonce;
+    private final MediaCache mediaCache;
     private final OkHttpClient okHttpClient;
     private final int port;
 
+    private final BufferPool bufferPool = new BufferPool(64 * 1024, 8);
+
+    // resolves requests to replies.
+    private final ThreadPoolExecutor workers = newExecutor("ProxyWorker-%d", MAX_WORKERS);
+
+    // fills the buffers of upstream responses.
+    private final ThreadPoolExecutor readers = newExecutor("ProxyReader-%d", MAX_READERS);
+
+    // tasks that need to run on the selector thread.
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    // connections that wait for more data. Only accessed by the selector thread.
+    private final Set<Connection> waiting = new HashSet<>();
+
+    private Selector selector;
+
     @Inject
-    public HttpProxyService(OkHttpClient okHttpClient) {
-        this(okHttpClient, getRandomPort());
+    public HttpProxyService(MediaCache mediaCache, OkHttpClient okHttpClient) {
+        this(mediaCache, okHttpClient, getRandomPort());
     }
 
-    private HttpProxyService(OkHttpClient okHttpClient, int port) {
-        super("127.0.0.1", port);
-
+    private HttpProxyService(MediaCache mediaCache, OkHttpClient okHttpClient, int port) {
         this.port = port;
+        this.mediaCache = mediaCache;
         this.okHttpClient = okHttpClient;
         this.nonce = Hashing.md5().hashLong(currentTimeMillis()).toString();
-        logger.info("Open simple proxy on port " + port);
+    }
+
+    private static ThreadPoolExecutor newExecutor(String nameFormat, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat(nameFormat)
+                        .setDaemon(true)
+                        .build());
+
+        // do not keep idle threads around while nothing is played.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /**
@@ -69,6 +126,30 @@ public class HttpProxyService extends NanoHTTPD implements ProxyService {
         return (int) (10000 + (Math.random() * 40000));
     }
 
+    /**
+     * Binds the server socket and starts the selector thread.
+     */
+    public void start() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.configureBlocking(false);
+            server.socket().bind(new InetSocketAddress("127.0.0.1", port));
+
+            selector = Selector.open();
+            server.register(selector, SelectionKey.OP_ACCEPT);
+
+        } catch (IOException error) {
+            server.close();
+            throw error;
+        }
+
+        Thread thread = new Thread(this::selectLoop, "ProxySelector");
+        thread.setDaemon(true);
+        thread.start();
+
+        logger.info("Open simple proxy on port " + port);
+    }
+
     @Override
     public Uri proxy(Uri uri) {
         // do not proxy twice!
@@ -89,102 +170,243 @@ public class HttpProxyService extends NanoHTTPD implements ProxyService {
                 .build();
     }
 
-    @Override
-    public Response serve(IHTTPSession session) {
-        logger.info("New request for {}", session.getUri());
+    private void selectLoop() {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                selector.select();
+
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable()) {
+                        try {
+                            accept((ServerSocketChannel) key.channel());
+                        } catch (IOException error) {
+                            // e.g. out of file descriptors, keep serving the open connections.
+                            logger.warn("Could not accept connection: {}", error.toString());
+                        }
+                    } else {
+                        ((Connection) key.attachment()).handle(key);
+                    }
+                }
+
+                resumeWaitingConnections();
+            }
+
+        } catch (Throwable error) {
+            logger.error("Proxy selector thread stopped", error);
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void resumeWaitingConnections() {
+        if (waiting.isEmpty())
+            return;
+
+        for (Connection connection : new ArrayList<>(waiting)) {
+            try {
+                if (connection.body.ready()) {
+                    waiting.remove(connection);
+                    connection.key.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    connection.body.park();
+                }
+
+            } catch (Exception error) {
+                logger.info("Error while waiting for data: {}", error.toString());
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the given task on the selector thread.
+     */
+    private void runOnSelector(Runnable task) {
+        pending.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Builds the reply to the given request. This might block, so it must be called
+     * on a worker thread.
+     */
+    private Reply respond(String request) throws IOException {
+        List<String> lines = Splitter.on("\r\n").omitEmptyStrings().splitToList(request);
+        List<String> requestLine = Splitter.on(' ').splitToList(lines.get(0));
+        if (requestLine.size() < 2)
+            return Reply.status(400, "Bad Request");
 
-        Uri uri = Uri.parse(session.getUri());
+        logger.info("New request for {}", requestLine.get(1));
+
+        Uri uri = Uri.parse(requestLine.get(1));
         if (!nonce.equals(Iterables.getFirst(uri.getPathSegments(), null))) {
             logger.info("Got request with invalid nonce: {}", uri);
-            return newFixedLengthResponse(Response.Status.FORBIDDEN, "text/plain", "");
+            return Reply.status(403, "Forbidden");
         }
 
-        String decodedUrl = null;
-        try {
-            String encodedUrl = uri.getPathSegments().get(1);
+        String encodedUrl = uri.getPathSegments().get(1);
+        String url = new String(BaseEncoding.base64Url().decode(encodedUrl), Charsets.UTF_8).trim();
+        logger.info("Decoded request to {}", url);
 
-            logger.info("Decode {} as utf8 string now", encodedUrl);
-            String url = decodedUrl = new String(
-                    BaseEncoding.base64Url().decode(encodedUrl),
-                    Charsets.UTF_8).trim();
+        Optional<ByteRange> range = ByteRange.parse(header(lines, "Range"));
 
-            logger.info("Decoded request to {}", url);
-            return proxyUri(session, url);
+        Reply reply = url.matches("https?://.*")
+                ? proxyHttpUri(url, range)
+                : proxyFileUri(toFile(Uri.parse(url)), range);
 
-        } catch (Throwable error) {
-            logger.error("Could not proxy for url " + decodedUrl, error);
-            return ERROR_RESPONSE;
+        if ("HEAD".equals(requestLine.get(0)) && reply.body != null) {
+            reply.body.close();
+            reply.body = null;
         }
-    }
 
-    private Response proxyUri(IHTTPSession session, String url) throws IOException {
-        return url.matches("https?://.*") ? proxyHttpUri(session, url) : proxyFileUri(toFile(Uri.parse(url)));
+        return reply;
     }
 
-    private Response proxyFileUri(File file) throws FileNotFoundException {
+    private Reply proxyFileUri(File file, Optional<ByteRange> range) throws IOException {
         if (!file.exists())
-            return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "");
+            return Reply.status(404, "Not Found");
 
-        long size = file.length();
-        FileInputStream stream = new FileInputStream(file);
-        Response response = newFixedLengthResponse(Response.Status.OK,
-                guessContentType(file.toString()), stream, size);
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        return rangedReply(channel, null, guessContentType(file.toString()), channel.size(), range);
+    }
+
+    private Reply proxyHttpUri(String url, Optional<ByteRange> range) throws IOException {
+        Uri uri = Uri.parse(url);
+        if (range.isPresent() && range.get().startsAfter(mediaCache.cachedSize(uri))) {
+            // the range is not yet downloaded, ask the server for it. Do not open an
+            // entry, it would download the whole file next to the forwarded range.
+            return proxyHttpRange(url, range.get());
+        }
 
-        response.setGzipEncoding(false);
-        return response;
+        MediaCache.Entry entry = mediaCache.get(uri);
+
+        boolean keepEntry = false;
+        try {
+            long totalSize = entry.totalSize();
+
+            Reply reply = rangedReply(entry.openChannel(), entry, guessContentType(url), totalSize, range);
+            keepEntry = reply.body != null;
+
+            logger.info("Start sending {} ({} kb)", url, totalSize / 1024);
+            return reply;
+
+        } finally {
+            // the body closes the entry once it is sent.
+            if (!keepEntry) {
+                entry.close();
+            }
+        }
     }
 
-    private Response proxyHttpUri(IHTTPSession session, final String url) throws IOException {
-        Request request = buildRequest(url, session);
+    /**
+     * Requests the given range from the server and pipes the response to the client.
+     */
+    private Reply proxyHttpRange(String url, ByteRange range) throws IOException {
+        logger.info("Requesting range {} of {} from upstream", range, url);
+
+        Request request = new Request.Builder().url(url)
+                .header("Range", range.toString())
+                .build();
+
         okhttp3.Response response = okHttpClient.newCall(request).execute();
 
-        Response.IStatus status = translateStatus(response.code(), response.message());
-        String contentType = response.header("Content-Type", guessContentType(url));
+        Reply reply = new Reply(response.code(), firstNonNull(response.message(), "unknown"));
+        reply.headers.put("Content-Type", response.header("Content-Type", guessContentType(url)));
+        reply.headers.put("Accept-Ranges", "bytes");
 
-        InputStream stream;
-        final Optional<Integer> length = parseContentLength(response);
-        if (length.isPresent()) {
-            stream = new BlockingInputStream(response, length.get(), url);
-        } else {
-            stream = response.body().byteStream();
+        Long length = Longs.tryParse(response.header("Content-Length", ""));
+        if (length != null && length >= 0)
+            reply.headers.put("Content-Length", String.valueOf(length));
+
+        // forward content range header
+        String contentRange = response.header("Content-Range");
+        if (contentRange != null)
+            reply.headers.put("Content-Range", contentRange);
+
+        reply.body = new PipeBody(response);
+        return reply;
+    }
+
+    /**
+     * Builds a reply for the given file. If a range is given, a partial response for
+     * exactly this range is built. A negative total length means, that the size
+     * of the file is not yet known, in this case the whole file is sent.
+     */
+    private Reply rangedReply(FileChannel channel, @Nullable MediaCache.Entry entry,
+                                     String contentType, long totalLength,
+                                     Optional<ByteRange> range) throws IOException {
+
+        if (totalLength < 0) {
+            // we do not know the size, so we can not serve ranges.
+            Reply reply = new Reply(200, "OK");
+            reply.headers.put("Content-Type", contentType);
+            reply.body = new FileBody(channel, entry, 0, -1);
+            return reply;
         }
 
-        if (BuildConfig.DEBUG && response.cacheResponse() != null) {
-            logger.info("Response came from the cache");
+        long start = 0;
+        long end = totalLength - 1;
+        if (range.isPresent()) {
+            start = range.get().start(totalLength);
+            end = range.get().end(totalLength);
+
+            if (start >= totalLength || start > end) {
+                channel.close();
+
+                Reply reply = Reply.status(416, "Requested Range Not Satisfiable");
+                reply.headers.put("Content-Range", "bytes */" + totalLength);
+                return reply;
+            }
         }
 
-        Response result = newFixedLengthResponse(status, contentType, stream, length.or(-1));
-        result.setGzipEncoding(false);
-        result.setChunkedTransfer(false);
-        // result.addHeader("Accept-Range", "bytes");
-        result.addHeader("Cache-Content", "no-cache");
+        Reply reply = range.isPresent()
+                ? new Reply(206, "Partial Content")
+                : new Reply(200, "OK");
 
-        // forward content range header
-//        String contentRange = response.header("Content-Range");
-//        if (contentRange != null)
-//            result.addHeader("Content-Range", contentRange);
+        reply.headers.put("Content-Type", contentType);
+        reply.headers.put("Accept-Ranges", "bytes");
+        reply.headers.put("Content-Length", String.valueOf(end - start + 1));
 
-        if (length.isPresent()) {
-            result.addHeader("Content-Length", String.valueOf(length.get()));
+        if (range.isPresent()) {
+            reply.headers.put("Content-Range", "bytes " + start + "-" + end + "/" + totalLength);
         }
 
-        logger.info("Start sending {} ({} kb)", url, length.or(-1) / 1024);
-        return result;
+        reply.body = new FileBody(channel, entry, start, end + 1);
+        return reply;
     }
 
-    /**
-     * Parses the content length. Will return null, if the length is not parsable
-     * or not a positive number.
-     *
-     * @return The content length.
-     */
-    private Optional<Integer> parseContentLength(okhttp3.Response response) {
-        Integer parsed = Ints.tryParse(response.header("Content-Length", ""));
-        if (parsed != null && parsed <= 0) {
-            parsed = null;
+    @Nullable
+    private static String header(List<String> lines, String name) {
+        for (String line : lines.subList(1, lines.size())) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
         }
 
-        return Optional.fromNullable(parsed);
+        return null;
     }
 
     /**
@@ -209,63 +431,389 @@ public class HttpProxyService extends NanoHTTPD implements ProxyService {
         }
     }
 
-    private static Request buildRequest(String url, IHTTPSession session) {
-        Request.Builder req = new Request.Builder().url(url);
+    /**
+     * One client connection. A connection reads exactly one request, sends
+     * the reply and is closed afterwards.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+
+        SelectionKey key;
 
-        // forward the range header
-        // String range = session.getHeaders().get("range");
-        // if (range != null)
-        //    req = req.addHeader("Range", range);
+        private ByteBuffer header;
+        private Body body;
 
-        return req.build();
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isReadable()) {
+                    onReadable();
+
+                } else if (key.isWritable()) {
+                    onWritable();
+                }
+
+            } catch (IOException | RuntimeException error) {
+                logger.info("Closing connection: {}", error.toString());
+                close();
+            }
+        }
+
+        private void onReadable() throws IOException {
+            if (channel.read(request) < 0) {
+                close();
+                return;
+            }
+
+            int end = endOfRequest();
+            if (end < 0) {
+                if (!request.hasRemaining()) {
+                    logger.warn("Request too large, closing connection");
+                    close();
+                }
+
+                return;
+            }
+
+            // stop reading until the reply is ready.
+            key.interestOps(0);
+
+            String head = new String(request.array(), 0, end, Charsets.ISO_8859_1);
+            workers.submit(() -> resolve(head));
+        }
+
+        /**
+         * Builds the reply on a worker thread.
+         */
+        private void resolve(String head) {
+            Reply reply;
+            try {
+                reply = respond(head);
+
+            } catch (Throwable error) {
+                logger.error("Could not proxy request", error);
+                reply = Reply.status(500, "Internal Server Error");
+            }
+
+            Reply result = reply;
+            runOnSelector(() -> startReply(result));
+        }
+
+        private void startReply(Reply reply) {
+            header = reply.encodeHeader();
+            body = reply.body;
+
+            if (!key.isValid()) {
+                close();
+                return;
+            }
+
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        private void onWritable() throws IOException {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining())
+                    return;
+            }
+
+            if (body == null) {
+                close();
+                return;
+            }
+
+            long written = body.writeTo(channel);
+            if (written == Body.END) {
+                close();
+
+            } else if (written == 0 && !body.ready()) {
+                // nothing to send right now, the body wakes up the selector once it is ready.
+                key.interestOps(0);
+                waiting.add(this);
+                body.park();
+            }
+        }
+
+        /**
+         * Returns the end of the request headers or -1, if the headers are incomplete.
+         */
+        private int endOfRequest() {
+            byte[] bytes = request.array();
+            for (int idx = 3; idx < request.position(); idx++) {
+                if (bytes[idx - 3] == '\r' && bytes[idx - 2] == '\n' && bytes[idx - 1] == '\r' && bytes[idx] == '\n') {
+                    return idx - 3;
+                }
+            }
+
+            return -1;
+        }
+
+        void close() {
+            waiting.remove(this);
+
+            if (key != null) {
+                key.cancel();
+            }
+
+            closeQuietly(channel);
+
+            if (body != null) {
+                closeQuietly(body);
+                body = null;
+            }
+        }
     }
 
-    private static Response.IStatus translateStatus(int code, String description) {
-        return new Response.IStatus() {
-            @Override
-            public int getRequestStatus() {
-                return code;
+    private static final class Reply {
+        final int status;
+        final String reason;
+        final Map<String, String> headers = new LinkedHashMap<>();
+
+        @Nullable
+        Body body;
+
+        Reply(int status, String reason) {
+            this.status = status;
+            this.reason = reason;
+        }
+
+        ByteBuffer encodeHeader() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
             }
 
-            @Override
-            public String getDescription() {
-                return code + " " + firstNonNull(description, "unknown");
+            sb.append("Cache-Control: no-cache\r\n");
+            sb.append("Connection: close\r\n\r\n");
+            return ByteBuffer.wrap(sb.toString().getBytes(Charsets.ISO_8859_1));
+        }
+
+        static Reply status(int status, String reason) {
+            Reply reply = new Reply(status, reason);
+            reply.headers.put("Content-Length", "0");
+            return reply;
+        }
+    }
+
+    /**
+     * The body of a reply.
+     */
+    private interface Body extends Closeable {
+        long END = -1;
+
+        /**
+         * Writes the next bytes to the target. Returns the number of bytes written,
+         * or {@link #END} if the body was sent completely.
+         */
+        long writeTo(WritableByteChannel target) throws IOException;
+
+        /**
+         * Returns true, if the next call to {@link #writeTo(WritableByteChannel)}
+         * can make progress.
+         */
+        boolean ready() throws IOException;
+
+        /**
+         * Called on the selector thread if the body is not ready. The body must wake up
+         * the selector once it becomes ready.
+         */
+        void park();
+    }
+
+    /**
+     * Sends a part of a file. If an entry of the media cache is given, only the bytes that
+     * are already stored are sent. A negative end sends the file up to its final size.
+     */
+    private final class FileBody implements Body {
+        private final FileChannel channel;
+        private final MediaCache.Entry entry;
+        private final long end;
+
+        private long position;
+
+        // set by the selector thread, cleared by the downloading thread.
+        private volatile boolean parked;
+
+        FileBody(FileChannel channel, @Nullable MediaCache.Entry entry, long start, long end) {
+            this.channel = channel;
+            this.entry = entry;
+            this.position = start;
+            this.end = end;
+
+            if (entry != null) {
+                entry.setWriteListener(this::onWrite);
             }
-        };
+        }
+
+        private void onWrite() {
+            if (parked) {
+                parked = false;
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel target) throws IOException {
+            long available = available();
+            if (position >= available) {
+                if (entry != null && !entry.isDone()) {
+                    // wait for the download to catch up.
+                    return 0;
+                }
+
+                if (entry != null)
+                    entry.checkError();
+
+                if (end >= 0 && position < end)
+                    throw new IOException("File ended unexpectedly");
+
+                return END;
+            }
+
+            long count = channel.transferTo(position, available - position, target);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public boolean ready() {
+            return entry == null || entry.isDone() || position < available();
+        }
+
+        @Override
+        public void park() {
+            parked = true;
+        }
+
+        private long available() {
+            long available = entry != null ? entry.cachedSize() : end;
+            return end >= 0 ? Math.min(end, available) : available;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                if (entry != null) {
+                    entry.close();
+                }
+            }
+        }
     }
 
     /**
-     * Reads data in exactly the requested block sizes, if possible.
-     * Also prints debug information, if available.
+     * Pipes the body of an upstream response to the client. The blocking reads
+     * from the response happen on a reader thread directly into a pooled buffer.
      */
-    private static class BlockingInputStream extends FilterInputStream {
-        private int read;
-        private final String url;
-        private final int length;
+    private final class PipeBody implements Body {
+        private final okhttp3.Response response;
+        private final BufferedSource source;
+        private final ByteBuffer buffer;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        // written by the reader, read by the selector thread.
+        private volatile boolean reading;
+        private volatile boolean endOfStream;
+        private volatile boolean closed;
+        private volatile IOException error;
+
+        PipeBody(okhttp3.Response response) {
+            this.response = response;
+            this.source = response.body().source();
+
+            // start with an empty buffer in read mode.
+            this.buffer = bufferPool.acquire();
+            this.buffer.flip();
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel target) throws IOException {
+            if (reading)
+                return 0;
 
-        public BlockingInputStream(okhttp3.Response response, int length, String url) {
-            super(response.body().byteStream());
+            if (error != null)
+                throw new IOException("Could not read from upstream", error);
 
-            this.url = url;
-            this.length = length;
+            if (buffer.hasRemaining())
+                return target.write(buffer);
+
+            if (endOfStream)
+                return END;
+
+            // the buffer is drained, refill it in the background.
+            reading = true;
+            readers.submit(this::fill);
+            return 0;
         }
 
         @Override
-        public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) throws IOException {
-            int result = ByteStreams.read(in, buffer, byteOffset, byteCount);
+        public boolean ready() {
+            return !reading;
+        }
 
-            if (BuildConfig.DEBUG && read / 500_000 != (read + result) / 500_000) {
-                int percent = 100 * read / length;
-                int loaded = (read + result) / 1024;
-                logger.info("Approx {}% loaded ({}, {}kb)", percent, url, loaded);
+        @Override
+        public void park() {
+            // the reader wakes up the selector once it filled the buffer.
+        }
+
+        private void fill() {
+            try {
+                buffer.clear();
 
-                read += result;
-                if (read == length) {
-                    logger.info("Finished sending file {}", url);
+                int count = source.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+                if (count < 0) {
+                    endOfStream = true;
+                } else {
+                    buffer.position(count);
                 }
+
+            } catch (IOException err) {
+                error = err;
+
+            } finally {
+                buffer.flip();
+                reading = false;
+
+                if (closed) {
+                    releaseBuffer();
+                } else {
+                    selector.wakeup();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            response.body().close();
+
+            if (!reading) {
+                releaseBuffer();
             }
+        }
+
+        private void releaseBuffer() {
+            if (released.compareAndSet(false, true)) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
 
-            return result == 0 ? -1 : result;
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException error) {
+                logger.warn("Could not close: {}", error.toString());
+            }
         }
     }
 }
@@ -18,8 +18,13 @@ import android.support.annotation.NonNull;
 
 import com.google.common.io.ByteStreams;
 import com.pr0gramm.app.R;
-import com.squareup.picasso.Downloader;
+import com.pr0gramm.app.io.HttpCachePartitions;
+import com.pr0gramm.app.util.BitmapPool;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -28,33 +33,53 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import it.sephiroth.android.library.exif2.ExifInterface;
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
 
 /**
  */
 @Singleton
 public class FancyExifThumbnailGenerator {
-    private final Downloader downloader;
+    private final Call.Factory httpClient;
+    private final BitmapPool bitmapPool;
     private final Bitmap maskV;
     private final Bitmap maskH;
 
     @Inject
-    public FancyExifThumbnailGenerator(Context context, Downloader downloader) {
-        this.downloader = downloader;
+    public FancyExifThumbnailGenerator(Context context, HttpCachePartitions httpClient, BitmapPool bitmapPool) {
+        this.httpClient = httpClient;
+        this.bitmapPool = bitmapPool;
         maskV = BitmapFactory.decodeResource(context.getResources(), R.raw.mask_v);
         maskH = BitmapFactory.decodeResource(context.getResources(), R.raw.mask_h);
     }
 
     @Nullable
+    @SuppressLint("NewApi")
     public Bitmap fancyThumbnail(Uri uri, float aspect) throws IOException {
-        byte[] bytes = fetch(uri);
-
         // almost square? fall back on non fancy normal image
         if (1 / 1.05 < aspect && aspect < 1.05) {
-            return decode565(bytes);
+            return decode565(fetch(uri));
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(32 * 1024);
+
+        Bitmap low = null;
+        try (InputStream input = open(uri)) {
+            // read only the leading segments to look for the exif thumbnail
+            try {
+                low = exifThumbnail(readExifHeader(input, buffer));
+            } catch (EOFException ignored) {
+                // the image ends before its exif segment
+            }
+
+            // now we need the rest of the image in any case
+            ByteStreams.copy(input, buffer);
         }
 
-        // load exif thumbnail or fall back to square image, if loading fails
-        Bitmap low = exifThumbnail(bytes);
+        byte[] bytes = buffer.toByteArray();
+
+        // fall back to square image, if there is no exif thumbnail
         if (low == null)
             return decode565(bytes);
 
@@ -68,7 +93,7 @@ public class FancyExifThumbnailGenerator {
         try {
             return compose(aspect, low, normal);
         } finally {
-            normal.recycle();
+            bitmapPool.put(normal);
             low.recycle();
         }
     }
@@ -98,7 +123,10 @@ public class FancyExifThumbnailGenerator {
         }
 
         // now generate the result
-        Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        Bitmap result = bitmapPool.get(width, height, Bitmap.Config.RGB_565);
+        if (result == null)
+            result = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+
         Paint paint = new Paint();
 
         Canvas canvas = new Canvas(result);
@@ -111,31 +139,97 @@ public class FancyExifThumbnailGenerator {
     }
 
     private Bitmap decodeMutableBitmap(byte[] bytes) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-        options.inMutable = true;
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        return bitmapPool.decode(bytes, Bitmap.Config.ARGB_8888);
     }
 
-    private Bitmap exifThumbnail(byte[] bytes) throws IOException {
-        ExifInterface exif = new ExifInterface();
-        exif.readExif(bytes, ExifInterface.Options.OPTION_ALL);
-        return exif.getThumbnailBitmap();
+    @Nullable
+    private Bitmap exifThumbnail(@Nullable byte[] header) {
+        if (header == null)
+            return null;
+
+        try {
+            // the thumbnail is referenced from the first ifd, we dont need anything else.
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(header, ExifInterface.Options.OPTION_IFD_1 | ExifInterface.Options.OPTION_THUMBNAIL);
+            return exif.getThumbnailBitmap();
+
+        } catch (Exception error) {
+            return null;
+        }
+    }
+
+    /**
+     * Copies the jpeg segments up to and including the exif segment from the input
+     * into the buffer. Returns the copied bytes, or null, if the image has no exif segment.
+     * The input is never read past the exif segment or the start of the image data.
+     */
+    @Nullable
+    private static byte[] readExifHeader(InputStream input, ByteArrayOutputStream buffer) throws IOException {
+        DataInputStream data = new DataInputStream(input);
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        int startOfImage = data.readUnsignedShort();
+        out.writeShort(startOfImage);
+        if (startOfImage != 0xffd8)
+            return null;
+
+        while (true) {
+            int marker = data.readUnsignedShort();
+            out.writeShort(marker);
+
+            // start of scan or end of image, no exif segment in the header
+            if ((marker & 0xff00) != 0xff00 || marker == 0xffda || marker == 0xffd9)
+                return null;
+
+            int length = data.readUnsignedShort();
+            out.writeShort(length);
+            if (length < 2)
+                return null;
+
+            byte[] segment = new byte[length - 2];
+            data.readFully(segment);
+            out.write(segment);
+
+            if (marker == 0xffe1 && isExifSegment(segment))
+                return buffer.toByteArray();
+        }
+    }
+
+    private static boolean isExifSegment(byte[] segment) {
+        return segment.length >= 6
+                && segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+                && segment[4] == 0 && segment[5] == 0;
+    }
+
+    /**
+     * Opens the image with one plain request, so that the complete response
+     * can be stored in the http cache and served from there the next time.
+     */
+    private InputStream open(Uri uri) throws IOException {
+        Response response = checkSuccessful(httpClient.newCall(newRequest(uri).build()).execute());
+        return response.body().byteStream();
     }
 
-    @SuppressLint("NewApi")
     private byte[] fetch(Uri uri) throws IOException {
-        byte[] bytes;
-        Downloader.Response response = downloader.load(uri, 0);
-        try (InputStream input = response.getInputStream()) {
-            bytes = ByteStreams.toByteArray(input);
+        try (InputStream input = open(uri)) {
+            return ByteStreams.toByteArray(input);
         }
-        return bytes;
+    }
+
+    private static Request.Builder newRequest(Uri uri) {
+        return new Request.Builder().url(uri.toString());
+    }
+
+    private static Response checkSuccessful(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            response.body().close();
+            throw new IOException("Server responded with " + response.code() + " " + response.message());
+        }
+
+        return response;
     }
 
     private Bitmap decode565(byte[] bytes) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inPreferredConfig = Bitmap.Config.RGB_565;
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        return bitmapPool.decode(bytes, Bitmap.Config.RGB_565);
     }
 }
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.ColorRes;
 import android.view.View;
@@ -20,14 +21,16 @@ import com.pr0gramm.app.BuildConfig;
 import com.pr0gramm.app.R;
 import com.pr0gramm.app.Settings;
 import com.pr0gramm.app.feed.FeedItem;
+import com.pr0gramm.app.io.MediaCache;
 import com.pr0gramm.app.services.ThemeHelper;
 import com.pr0gramm.app.services.UriHelper;
 import com.pr0gramm.app.services.proxy.ProxyService;
 import com.pr0gramm.app.ui.base.BaseAppCompatActivity;
 import com.pr0gramm.app.util.AndroidUtility;
+import com.pr0gramm.app.util.BitmapPool;
 import com.pr0gramm.app.util.PicassoDecoder;
 import com.pr0gramm.app.util.decoders.Decoders;
-import com.squareup.picasso.Downloader;
+import com.pr0gramm.app.util.decoders.TileCache;
 import com.squareup.picasso.Picasso;
 import com.trello.rxlifecycle.RxLifecycle;
 
@@ -61,7 +64,13 @@ public class ZoomViewActivity extends BaseAppCompatActivity {
     Picasso picasso;
 
     @Inject
-    Downloader downloader;
+    MediaCache mediaCache;
+
+    @Inject
+    TileCache tileCache;
+
+    @Inject
+    BitmapPool bitmapPool;
 
     @Inject
     Settings settings;
@@ -79,7 +88,10 @@ public class ZoomViewActivity extends BaseAppCompatActivity {
 
         imageView.setDebug(BuildConfig.DEBUG);
         imageView.setBitmapDecoderFactory(() -> new PicassoDecoder(tag, picasso));
-        imageView.setRegionDecoderFactory(() -> Decoders.regionDecoder(downloader));
+        imageView.setRegionDecoderFactory(() -> Decoders.regionDecoder(mediaCache, tileCache, bitmapPool));
+
+        // the region decoder can decode multiple tiles at once.
+        imageView.setExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 
         rxImageLoaded(imageView)
                 .compose(RxLifecycle.bindActivity(lifecycle()))
@@ -6,8 +6,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
@@ -55,8 +53,8 @@ import com.pr0gramm.app.services.FollowingService;
 import com.pr0gramm.app.services.ImmutableEnhancedUserInfo;
 import com.pr0gramm.app.services.InMemoryCacheService;
 import com.pr0gramm.app.services.InboxService;
+import com.pr0gramm.app.services.ItemStatusService;
 import com.pr0gramm.app.services.RecentSearchesServices;
-import com.pr0gramm.app.services.SeenService;
 import com.pr0gramm.app.services.SingleShotService;
 import com.pr0gramm.app.services.Track;
 import com.pr0gramm.app.services.UriHelper;
@@ -136,9 +134,6 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
     @Inject
     Picasso picasso;
 
-    @Inject
-    SeenService seenService;
-
     @Inject
     Settings settings;
 
@@ -157,6 +152,9 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
     @Inject
     PreloadManager preloadManager;
 
+    @Inject
+    ItemStatusService itemStatusService;
+
     @Inject
     InboxService inboxService;
 
@@ -185,6 +183,7 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
     private ItemWithComment autoOpenOnLoad = null;
 
     private FeedAdapter feedAdapter;
+    private ThumbnailScheduler thumbnails;
     private FeedLoader loader;
     private boolean scrollToolbar;
 
@@ -211,6 +210,16 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
         }
 
         this.scrollToolbar = useToolbarTopMargin();
+
+        // keep the status of the items in the feed up to date, even
+        // while the view is destroyed because a post is shown.
+        itemStatusService.changes()
+                .compose(bindUntilEventAsync(FragmentEvent.DESTROY))
+                .subscribe(change -> {
+                    if (feedAdapter != null) {
+                        feedAdapter.getFeed().updateStatus(change.itemIds, change.set, change.clear);
+                    }
+                });
     }
 
     @Override
@@ -229,6 +238,8 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
     public void onViewCreated(View view, Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
+        thumbnails = new ThumbnailScheduler(getActivity(), picasso);
+
         if (feedAdapter == null) {
             if (busyIndicator != null)
                 busyIndicator.setVisibility(View.VISIBLE);
@@ -506,6 +517,11 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
             recyclerView.removeOnScrollListener(onScrollListener);
         }
 
+        if (thumbnails != null) {
+            thumbnails.stop();
+            thumbnails = null;
+        }
+
         super.onDestroyView();
     }
 
@@ -541,6 +557,11 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
     private FeedAdapter newFeedAdapter(FeedFilter feedFilter, Optional<Long> around) {
         Feed feed = new Feed(feedFilter, getSelectedContentType());
 
+        // cancel all requests and prefetches of the previous feed
+        if (loader != null) {
+            loader.stop();
+        }
+
         loader = new FeedLoader(new FeedLoader.Binder() {
             @Override
             public <T> Observable.Transformer<T, T> bind() {
@@ -554,7 +575,7 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
                 checkMainThread();
                 onFeedError(error);
             }
-        }, feedService, feed);
+        }, feedService, itemStatusService, feed);
 
         // start loading now
         loader.restart(around);
@@ -591,10 +612,6 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
             seenIndicatorStyle = settings.seenIndicatorStyle();
             feedAdapter.notifyDataSetChanged();
         }
-
-        preloadManager.all()
-                .compose(bindToLifecycleAsync())
-                .subscribe(ignored -> feedAdapter.notifyDataSetChanged());
     }
 
     private void recheckContentTypes() {
@@ -817,7 +834,7 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
             return;
         }
 
-        Intent intent = PreloadService.newIntent(getActivity(), feedAdapter.getFeed().getItems());
+        Intent intent = PreloadService.newIntent(getActivity(), feedAdapter.getFeed());
         getActivity().startService(intent);
 
         Track.preloadCurrentFeed(feedAdapter.getFeed().getItems().size());
@@ -987,10 +1004,6 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
         return feedAdapter.getFilter();
     }
 
-    private boolean isSeen(FeedItem item) {
-        return seenService.isSeen(item);
-    }
-
     private void createRecyclerViewClickListener() {
         RecyclerItemClickListener listener = new RecyclerItemClickListener(getActivity(), recyclerView);
 
@@ -1075,23 +1088,24 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
 
             with(fragment -> {
                 Uri imageUri = UriHelper.of(fragment.getContext()).thumbnail(item);
-                fragment.picasso.load(imageUri)
-                        .config(Bitmap.Config.RGB_565)
-                        .placeholder(new ColorDrawable(0xff333333))
-                        .into(holder.image);
+                if (fragment.thumbnails != null) {
+                    fragment.thumbnails.bind(imageUri, holder.image);
+                }
 
                 holder.itemView.setTag(holder);
                 holder.index = position;
                 holder.item = item;
 
+                int status = feed.status(position);
+
                 // show preload-badge
-                holder.setIsPreloaded(fragment.preloadManager.exists(item.id()));
+                holder.setIsPreloaded((status & ItemStatusService.PRELOADED) != 0);
 
                 // check if this item was already seen.
-                if (fragment.inMemoryCacheService.isRepost(item.id())) {
+                if ((status & ItemStatusService.REPOST) != 0) {
                     holder.setIsRepost();
 
-                } else if (fragment.seenIndicatorStyle == IndicatorStyle.ICON && fragment.isSeen(item)) {
+                } else if (fragment.seenIndicatorStyle == IndicatorStyle.ICON && (status & ItemStatusService.SEEN) != 0) {
                     holder.setIsSeen();
 
                 } else {
@@ -1100,6 +1114,15 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
             });
         }
 
+        @Override
+        public void onViewRecycled(FeedItemViewHolder holder) {
+            with(fragment -> {
+                if (fragment.thumbnails != null) {
+                    fragment.thumbnails.unbind(holder.image);
+                }
+            });
+        }
+
         @Override
         public int getItemCount() {
             return feed.size();
@@ -1115,19 +1138,13 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
         }
 
         @Override
-        public void onNewItems(List<FeedItem> newItems) {
-            // check if we prepended items to the list.
-            int prependCount = 0;
-            for (int idx = 0; idx < newItems.size(); idx++) {
-                if (newItems.get(idx).id() == getItemId(idx)) {
-                    prependCount++;
-                }
+        public void onNewItems(List<FeedItem> newItems, List<Feed.Range> inserted, List<Feed.Range> changed) {
+            for (Feed.Range range : inserted) {
+                notifyItemRangeInserted(range.start, range.count);
             }
 
-            if (prependCount == 0) {
-                notifyDataSetChanged();
-            } else {
-                notifyItemRangeInserted(0, prependCount);
+            for (Feed.Range range : changed) {
+                notifyItemRangeChanged(range.start, range.count);
             }
 
             // load meta data for the items.
@@ -1144,6 +1161,13 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
             });
         }
 
+        @Override
+        public void onStatusChanged(List<Feed.Range> changed) {
+            for (Feed.Range range : changed) {
+                notifyItemRangeChanged(range.start, range.count);
+            }
+        }
+
         @Override
         public void onRemoveItems() {
             notifyDataSetChanged();
@@ -1176,8 +1200,8 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
                 .build();
 
         InMemoryCacheService cacheService = this.inMemoryCacheService;
-        WeakReference<FeedFragment> fragment = new WeakReference<>(this);
 
+        // caching the reposts updates the status of the items in the feed.
         feedService.getFeedItems(query)
                 .subscribeOn(BackgroundScheduler.instance())
                 .observeOn(AndroidSchedulers.mainThread())
@@ -1185,13 +1209,6 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
                     if (items.getItems().size() > 0) {
                         List<Long> ids = Lists.transform(items.getItems(), Api.Feed.Item::getId);
                         cacheService.cacheReposts(ids);
-
-                        // update feed adapter to show new 'repost' badges.
-                        FeedFragment frm = fragment.get();
-                        if (frm != null) {
-                            frm.feedAdapter.notifyDataSetChanged();
-                        }
-
                     }
                 }, Actions.empty());
     }
@@ -1290,26 +1307,19 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
             }
 
             ifPresent(getRecyclerViewLayoutManager(), layoutManager -> {
-                if (loader.isLoading())
+                int firstVisibleItem = layoutManager.findFirstVisibleItemPosition();
+                int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
+                if (firstVisibleItem == RecyclerView.NO_POSITION || lastVisibleItem == RecyclerView.NO_POSITION)
                     return;
 
-                Feed feed = feedAdapter.getFeed();
-                int totalItemCount = layoutManager.getItemCount();
-
-                if (dy > 0 && !feed.isAtEnd()) {
-                    int lastVisibleItem = layoutManager.findLastVisibleItemPosition();
-                    if (totalItemCount > 12 && lastVisibleItem >= totalItemCount - 12) {
-                        logger.info("Request next page now");
-                        loader.next();
-                    }
-                }
+                // the loader decides itself if it needs to prefetch some pages.
+                int offset = ((MergeRecyclerAdapter) recyclerView.getAdapter()).getOffset(feedAdapter).or(0);
+                loader.onViewportChanged(max(0, firstVisibleItem - offset), max(0, lastVisibleItem - offset));
 
-                if (dy < 0 && !feed.isAtStart()) {
-                    int firstVisibleItem = layoutManager.findFirstVisibleItemPosition();
-                    if (totalItemCount > 12 && firstVisibleItem < 12) {
-                        logger.info("Request previous page now");
-                        loader.previous();
-                    }
+                if (thumbnails != null) {
+                    thumbnails.update(feedAdapter.getFeed(),
+                            max(0, firstVisibleItem - offset), max(0, lastVisibleItem - offset),
+                            layoutManager.getSpanCount(), loader.velocity());
                 }
             });
         }
@@ -1317,6 +1327,9 @@ public class FeedFragment extends BaseFragment implements FilterFragment {
         @Override
         public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
             if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                // the next scroll starts from zero velocity
+                loader.onScrollIdle();
+
                 if (getActivity() instanceof ToolbarActivity) {
                     int y = estimateRecyclerViewScrollY(recyclerView).or(Integer.MAX_VALUE);
 
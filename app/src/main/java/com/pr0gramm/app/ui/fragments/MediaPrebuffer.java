@@ -0,0 +1,184 @@
+package com.pr0gramm.app.ui.fragments;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.pr0gramm.app.Settings;
+import com.pr0gramm.app.feed.Feed;
+import com.pr0gramm.app.io.DownloadScheduler;
+import com.pr0gramm.app.io.MediaCache;
+import com.pr0gramm.app.ui.views.viewer.MediaUri;
+import com.pr0gramm.app.util.AndroidUtility;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Subscription;
+import rx.android.schedulers.AndroidSchedulers;
+
+/**
+ * Buffers the media of the posts next to the current one into the {@link MediaCache},
+ * so that swiping to a neighbour shows its media (almost) instantly. Of videos and gifs
+ * only the first {@link #MEDIA_PREFIX_BYTES} are buffered, images of the following posts
+ * are buffered completely. All downloads run in the prefetch lane, so they never take
+ * bandwidth from the current post.
+ */
+class MediaPrebuffer {
+    private static final Logger logger = LoggerFactory.getLogger("MediaPrebuffer");
+
+    private static final long MEDIA_PREFIX_BYTES = 512 * 1024;
+    private static final long MAX_IMAGE_BYTES = 2 * 1024 * 1024;
+
+    // never hold more than this many bytes for the neighbours.
+    private static final long BUDGET_BYTES = 6 * 1024 * 1024;
+
+    // number of posts to buffer in scroll direction
+    private static final int LOOK_AHEAD = 2;
+
+    // give the current post some time to start its own download first.
+    private static final long IDLE_DELAY_MILLIS = 750;
+
+    private final Context context;
+    private final MediaCache mediaCache;
+    private final Settings settings;
+
+    // entries that are currently buffered.
+    private final Map<Uri, MediaCache.Entry> entries = new HashMap<>();
+
+    private Subscription pending;
+    private int lastPosition = -1;
+    private int direction = 1;
+
+    MediaPrebuffer(Context context, MediaCache mediaCache) {
+        this.context = context;
+        this.mediaCache = mediaCache;
+        this.settings = Settings.of(context);
+    }
+
+    /**
+     * Informs the prebuffer about the position of the current post. If the user changed
+     * the direction, all running downloads are cancelled.
+     */
+    public void update(Feed feed, int position) {
+        if (lastPosition >= 0 && position != lastPosition) {
+            int newDirection = Integer.signum(position - lastPosition);
+            if (newDirection != direction) {
+                logger.info("Direction changed, cancel prebuffering");
+                direction = newDirection;
+                closeAll();
+            }
+        }
+
+        lastPosition = position;
+
+        unsubscribePending();
+        pending = Observable.timer(IDLE_DELAY_MILLIS, TimeUnit.MILLISECONDS, AndroidSchedulers.mainThread())
+                .subscribe(ignored -> prebuffer(feed, position));
+    }
+
+    /**
+     * Stops all buffering.
+     */
+    public void stop() {
+        unsubscribePending();
+        closeAll();
+    }
+
+    private void prebuffer(Feed feed, int position) {
+        if (AndroidUtility.isOnMobile(context)) {
+            closeAll();
+            return;
+        }
+
+        // collect the targets in the order of their importance
+        Map<Uri, Long> targets = new LinkedHashMap<>();
+        addTarget(targets, feed, position + direction, true);
+        addTarget(targets, feed, position - direction, false);
+        for (int offset = 2; offset <= LOOK_AHEAD; offset++) {
+            addTarget(targets, feed, position + offset * direction, true);
+        }
+
+        // only take as many targets as fit into the budget
+        long budget = BUDGET_BYTES;
+        Iterator<Map.Entry<Uri, Long>> targetIterator = targets.entrySet().iterator();
+        while (targetIterator.hasNext()) {
+            long bytes = targetIterator.next().getValue();
+            if (bytes <= budget) {
+                budget -= bytes;
+            } else {
+                targetIterator.remove();
+            }
+        }
+
+        // stop buffering media that is no longer next to the current post
+        Iterator<Map.Entry<Uri, MediaCache.Entry>> entryIterator = entries.entrySet().iterator();
+        while (entryIterator.hasNext()) {
+            Map.Entry<Uri, MediaCache.Entry> entry = entryIterator.next();
+            if (!targets.containsKey(entry.getKey())) {
+                entry.getValue().close();
+                entryIterator.remove();
+            }
+        }
+
+        for (Map.Entry<Uri, Long> target : targets.entrySet()) {
+            if (!entries.containsKey(target.getKey())) {
+                logger.info("Prebuffer {}kb of {}", target.getValue() / 1024, target.getKey());
+
+                entries.put(target.getKey(), mediaCache.get(target.getKey(),
+                        DownloadScheduler.Priority.PREFETCH, target.getValue()));
+            }
+        }
+    }
+
+    private void addTarget(Map<Uri, Long> targets, Feed feed, int index, boolean ahead) {
+        if (index < 0 || index >= feed.size())
+            return;
+
+        MediaUri mediaUri = MediaUri.of(context, feed.at(index));
+        if (mediaUri.isLocal())
+            return;
+
+        switch (mediaUri.getMediaType()) {
+            case VIDEO:
+                targets.put(mediaUri.getBaseUri(), MEDIA_PREFIX_BYTES);
+                break;
+
+            case GIF:
+                // converted gifs are played from a different url
+                if (!settings.convertGifToWebm()) {
+                    targets.put(mediaUri.getBaseUri(), MEDIA_PREFIX_BYTES);
+                }
+
+                break;
+
+            case IMAGE:
+                if (ahead) {
+                    targets.put(mediaUri.getBaseUri(), MAX_IMAGE_BYTES);
+                }
+
+                break;
+        }
+    }
+
+    private void closeAll() {
+        for (MediaCache.Entry entry : entries.values()) {
+            entry.close();
+        }
+
+        entries.clear();
+    }
+
+    private void unsubscribePending() {
+        if (pending != null) {
+            pending.unsubscribe();
+            pending = null;
+        }
+    }
+}
@@ -20,6 +20,8 @@ import com.pr0gramm.app.feed.FeedItem;
 import com.pr0gramm.app.feed.FeedLoader;
 import com.pr0gramm.app.feed.FeedService;
 import com.pr0gramm.app.feed.FeedType;
+import com.pr0gramm.app.io.MediaCache;
+import com.pr0gramm.app.services.ItemStatusService;
 import com.pr0gramm.app.ui.FilterFragment;
 import com.pr0gramm.app.ui.IdFragmentStatePagerAdapter;
 import com.pr0gramm.app.ui.MainActionHandler;
@@ -51,6 +53,12 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
     @Inject
     FeedService feedService;
 
+    @Inject
+    ItemStatusService itemStatusService;
+
+    @Inject
+    MediaCache mediaCache;
+
     @BindView(R.id.pager)
     ViewPager viewPager;
 
@@ -58,6 +66,7 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
     private PostAdapter adapter;
 
     private PostFragment activePostFragment;
+    private MediaPrebuffer prebuffer;
 
     @Nullable
     private PreviewInfo previewInfo;
@@ -82,7 +91,9 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
         feed = getArgumentFeed(savedInstanceState);
         FeedLoader loader = new FeedLoader(
                 FeedLoader.bindTo(bindToLifecycleAsync(), AndroidUtility::logToCrashlytics),
-                feedService, feed);
+                feedService, itemStatusService, feed);
+
+        prebuffer = new MediaPrebuffer(getContext(), mediaCache);
 
         // create the adapter on the view
         adapter = new PostAdapter(getChildFragmentManager(), feed, loader) {
@@ -135,6 +146,15 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
         }
     }
 
+    @Override
+    public void onDestroyView() {
+        if (prebuffer != null) {
+            prebuffer.stop();
+        }
+
+        super.onDestroyView();
+    }
+
     @Override
     public void onViewStateRestored(@Nullable Bundle savedInstanceState) {
         super.onViewStateRestored(savedInstanceState);
@@ -168,6 +188,11 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
         if (activePostFragment != null) {
             activePostFragment.setActive(true);
 
+            // buffer the media of the neighbours while this post is shown
+            if (position >= 0) {
+                prebuffer.update(feed, position);
+            }
+
             // try scroll to initial comment. This will only work if the comment
             // is a part of the given post and will otherwise do nothing
             long startCommentId = getArguments().getLong(ARG_START_ITEM_COMMENT);
@@ -327,10 +352,15 @@ public class PostPagerFragment extends BaseFragment implements FilterFragment, P
         }
 
         @Override
-        public void onNewItems(List<FeedItem> newItems) {
+        public void onNewItems(List<FeedItem> newItems, List<Feed.Range> inserted, List<Feed.Range> changed) {
             notifyDataSetChanged();
         }
 
+        @Override
+        public void onStatusChanged(List<Feed.Range> changed) {
+            // ignore
+        }
+
         @Override
         public void onRemoveItems() {
             // should not happen
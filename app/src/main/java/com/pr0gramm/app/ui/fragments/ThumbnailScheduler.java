@@ -0,0 +1,123 @@
+package com.pr0gramm.app.ui.fragments;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.ColorDrawable;
+import android.net.Uri;
+import android.widget.ImageView;
+
+import com.pr0gramm.app.feed.Feed;
+import com.pr0gramm.app.services.UriHelper;
+import com.squareup.picasso.Picasso;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Schedules the thumbnail requests of the feed. Thumbnails of bound cells are loaded
+ * with a high priority. Thumbnails in scroll direction are warmed up with a low priority,
+ * the size of this look ahead window grows with the scroll velocity measured by the
+ * {@link com.pr0gramm.app.feed.FeedLoader}. Warm up requests
+ * that fall far behind the viewport are cancelled, so that they do not occupy the
+ * downloader after a fling.
+ */
+class ThumbnailScheduler {
+    private static final int MIN_LOOK_AHEAD_ROWS = 2;
+    private static final int MAX_LOOK_AHEAD_ROWS = 12;
+
+    // the look ahead covers the rows the user will scroll in this time
+    private static final float LOOK_AHEAD_SECONDS = 0.75f;
+
+    // warm up requests this far outside the viewport are cancelled
+    private static final int CANCEL_DISTANCE_ROWS = 4;
+
+    private final Context context;
+    private final Picasso picasso;
+    private final Object visibleTag = new Object();
+
+    // position of the thumbnails that are warmed up, the uri is used as the request tag.
+    private final Map<Uri, Integer> warming = new HashMap<>();
+
+    ThumbnailScheduler(Context context, Picasso picasso) {
+        this.context = context;
+        this.picasso = picasso;
+    }
+
+    /**
+     * Loads the thumbnail of a bound cell into the given view.
+     */
+    public void bind(Uri uri, ImageView target) {
+        // the view request will take over a running warm up request
+        warming.remove(uri);
+
+        picasso.load(uri)
+                .config(Bitmap.Config.RGB_565)
+                .placeholder(new ColorDrawable(0xff333333))
+                .priority(Picasso.Priority.HIGH)
+                .tag(visibleTag)
+                .into(target);
+    }
+
+    /**
+     * Cancels the request of a cell that was recycled.
+     */
+    public void unbind(ImageView target) {
+        picasso.cancelRequest(target);
+    }
+
+    /**
+     * Informs the scheduler about the visible range of items in the feed and
+     * the current scroll velocity in items per second.
+     */
+    public void update(Feed feed, int firstVisible, int lastVisible, int columns, float velocity) {
+        float rowsPerSecond = Math.abs(velocity) / columns;
+        int rows = Math.min(MAX_LOOK_AHEAD_ROWS, MIN_LOOK_AHEAD_ROWS + Math.round(rowsPerSecond * LOOK_AHEAD_SECONDS));
+
+        int start, end;
+        if (velocity >= 0) {
+            start = lastVisible + 1;
+            end = Math.min(feed.size() - 1, lastVisible + rows * columns);
+        } else {
+            start = Math.max(0, firstVisible - rows * columns);
+            end = firstVisible - 1;
+        }
+
+        cancelOutside(Math.min(start, firstVisible) - CANCEL_DISTANCE_ROWS * columns,
+                Math.max(end, lastVisible) + CANCEL_DISTANCE_ROWS * columns);
+
+        UriHelper uriHelper = UriHelper.of(context);
+        for (int idx = start; idx <= end; idx++) {
+            Uri uri = uriHelper.thumbnail(feed.at(idx));
+            if ("file".equals(uri.getScheme()) || warming.containsKey(uri))
+                continue;
+
+            warming.put(uri, idx);
+            picasso.load(uri)
+                    .config(Bitmap.Config.RGB_565)
+                    .priority(Picasso.Priority.LOW)
+                    .tag(uri)
+                    .fetch();
+        }
+    }
+
+    /**
+     * Cancels all requests.
+     */
+    public void stop() {
+        picasso.cancelTag(visibleTag);
+        cancelOutside(0, -1);
+    }
+
+    private void cancelOutside(int first, int last) {
+        Iterator<Map.Entry<Uri, Integer>> iterator = warming.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Uri, Integer> entry = iterator.next();
+            int position = entry.getValue();
+            if (position < first || position > last) {
+                picasso.cancelTag(entry.getKey());
+                iterator.remove();
+            }
+        }
+    }
+}
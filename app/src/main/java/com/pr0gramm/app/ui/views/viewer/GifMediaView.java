@@ -39,7 +39,7 @@ public class GifMediaView extends AbstractProgressMediaView {
     private GifDrawable gif;
 
     public GifMediaView(Activity context, MediaUri url, Runnable onViewListener) {
-        super(context, R.layout.player_gif, url.withProxy(true), onViewListener);
+        super(context, R.layout.player_gif, url.withProxy(false), onViewListener);
         imageView.setAlpha(0.f);
         loadGif();
 
@@ -68,6 +68,14 @@ public class GifMediaView extends AbstractProgressMediaView {
 
         onDownloadProgress(state.progress);
 
+        if (state.preview != null && gif == null) {
+            // show the first frame until the complete gif is loaded
+            imageView.setImageBitmap(state.preview);
+            imageView.setAlpha(1.f);
+
+            setViewAspect((float) state.preview.getWidth() / state.preview.getHeight());
+        }
+
         if (state.finished()) {
             gif = state.drawable;
             imageView.setImageDrawable(this.gif);
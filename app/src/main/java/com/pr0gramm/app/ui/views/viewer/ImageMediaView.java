@@ -2,6 +2,7 @@ package com.pr0gramm.app.ui.views.viewer;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.os.AsyncTask;
 import android.widget.TextView;
 
 import com.davemorrissey.labs.subscaleview.ImageSource;
@@ -11,12 +12,14 @@ import com.pr0gramm.app.ActivityComponent;
 import com.pr0gramm.app.BuildConfig;
 import com.pr0gramm.app.R;
 import com.pr0gramm.app.Settings;
+import com.pr0gramm.app.io.MediaCache;
 import com.pr0gramm.app.services.SingleShotService;
 import com.pr0gramm.app.util.AndroidUtility;
+import com.pr0gramm.app.util.BitmapPool;
 import com.pr0gramm.app.util.ErrorFormatting;
 import com.pr0gramm.app.util.PicassoDecoder;
 import com.pr0gramm.app.util.decoders.Decoders;
-import com.squareup.picasso.Downloader;
+import com.pr0gramm.app.util.decoders.TileCache;
 import com.squareup.picasso.Picasso;
 
 import org.slf4j.Logger;
@@ -51,7 +54,13 @@ public class ImageMediaView extends MediaView {
     Picasso picasso;
 
     @Inject
-    Downloader downloader;
+    MediaCache mediaCache;
+
+    @Inject
+    TileCache tileCache;
+
+    @Inject
+    BitmapPool bitmapPool;
 
     @Inject
     SingleShotService singleShotService;
@@ -71,7 +80,10 @@ public class ImageMediaView extends MediaView {
         imageView.setZoomEnabled(zoomView);
 
         imageView.setBitmapDecoderFactory(() -> new PicassoDecoder(tag, picasso));
-        imageView.setRegionDecoderFactory(() -> Decoders.regionDecoder(downloader));
+        imageView.setRegionDecoderFactory(() -> Decoders.regionDecoder(mediaCache, tileCache, bitmapPool));
+
+        // the region decoder can decode multiple tiles at once.
+        imageView.setExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         imageView.setOnImageEventListener(new SubsamplingScaleImageView.DefaultOnImageEventListener() {
             @Override
             public void onImageLoaded() {
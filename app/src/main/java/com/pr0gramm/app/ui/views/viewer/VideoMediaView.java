@@ -116,7 +116,11 @@ public class VideoMediaView extends AbstractProgressMediaView implements VideoPl
             videoViewInitialized = true;
 
             videoPlayer.setVideoCallbacks(this);
-            videoPlayer.open(getEffectiveUri());
+            // the exo player reads through the media cache, only
+            // the android player needs to go through the proxy.
+            videoPlayer.open(videoPlayer instanceof ExoVideoPlayer
+                    ? getMediaUri().getBaseUri()
+                    : getEffectiveUri());
         }
 
         applyMuteState();
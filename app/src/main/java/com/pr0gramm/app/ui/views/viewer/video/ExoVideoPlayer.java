@@ -45,6 +45,7 @@ import com.jakewharton.rxbinding.view.RxView;
 import com.pr0gramm.app.Dagger;
 import com.pr0gramm.app.R;
 import com.pr0gramm.app.Settings;
+import com.pr0gramm.app.io.MediaCache;
 import com.pr0gramm.app.ui.views.AspectLayout;
 import com.pr0gramm.app.util.AndroidUtility;
 
@@ -53,8 +54,6 @@ import org.slf4j.LoggerFactory;
 
 import java.util.List;
 
-import okhttp3.OkHttpClient;
-
 import static com.google.common.collect.FluentIterable.from;
 import static com.pr0gramm.app.util.AndroidUtility.getMessageWithCauses;
 
@@ -101,6 +100,10 @@ public class ExoVideoPlayer extends RxVideoPlayer implements VideoPlayer, ExoPla
         RxView.detaches(videoView).subscribe(event -> {
             logger.info("Detaching view, releasing exo player now.");
             exo.release();
+
+            if (dataSource instanceof MediaCacheDataSource) {
+                ((MediaCacheDataSource) dataSource).release();
+            }
         });
     }
 
@@ -119,8 +122,8 @@ public class ExoVideoPlayer extends RxVideoPlayer implements VideoPlayer, ExoPla
             };
         } else {
             logger.info("Got a remote file, using caching source.");
-            OkHttpClient httpClient = Dagger.appComponent(context).okHttpClient();
-            dataSource = new InputStreamCacheDataSource(context, httpClient, uri);
+            MediaCache mediaCache = Dagger.appComponent(context).mediaCache();
+            dataSource = new MediaCacheDataSource(mediaCache, uri);
         }
 
         this.uri = uri;
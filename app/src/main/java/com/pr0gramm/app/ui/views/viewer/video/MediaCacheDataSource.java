@@ -0,0 +1,74 @@
+package com.pr0gramm.app.ui.views.viewer.video;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.common.io.ByteStreams;
+import com.pr0gramm.app.io.MediaCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the video from the {@link MediaCache}. The download starts as soon as
+ * this data source is created and is shared with all other readers of the same uri.
+ */
+public class MediaCacheDataSource implements BufferedDataSource {
+    private final MediaCache.Entry entry;
+
+    private long totalSize = -1;
+    private InputStream inputStream;
+
+    public MediaCacheDataSource(MediaCache mediaCache, Uri uri) {
+        this.entry = mediaCache.get(uri);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        totalSize = entry.totalSize();
+
+        // start reading directly at the requested position
+        inputStream = entry.inputStreamAt(dataSpec.position);
+
+        // the number of bytes that can be read from the requested position on
+        if (dataSpec.length != C.LENGTH_UNBOUNDED)
+            return dataSpec.length;
+
+        return totalSize >= 0 ? totalSize - dataSpec.position : C.LENGTH_UNBOUNDED;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inputStream != null) {
+            inputStream.close();
+            inputStream = null;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        return ByteStreams.read(inputStream, buffer, offset, readLength);
+    }
+
+    /**
+     * Returns the percentage that is buffered, or -1, if unknown
+     */
+    public float buffered() {
+        return entry.fractionCached();
+    }
+
+    /**
+     * Releases the entry in the media cache. The data source
+     * must not be used afterwards.
+     */
+    public void release() {
+        entry.close();
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        super.finalize();
+        entry.close();
+    }
+}
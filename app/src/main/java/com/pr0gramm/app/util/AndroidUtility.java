@@ -9,6 +9,7 @@ import android.content.res.TypedArray;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -190,6 +191,17 @@ public class AndroidUtility {
         return ConnectivityManagerCompat.isActiveNetworkMetered(cm);
     }
 
+    /**
+     * Returns true, if there is currently no connected network.
+     */
+    public static boolean isOffline(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+        return networkInfo == null || !networkInfo.isConnected();
+    }
+
     /**
      * Gets the color tinted hq-icon
      */
@@ -0,0 +1,222 @@
+package com.pr0gramm.app.util;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * A pool of mutable bitmaps that are no longer used and can be decoded into by
+ * setting {@link BitmapFactory.Options#inBitmap}. Bitmaps are put into buckets by
+ * config and allocation size, each bucket holds bitmaps of at least its size.
+ * The pool is bounded in bytes, the least recently pooled bitmaps are dropped first.
+ * <p>
+ * Only bitmaps the caller owns exclusively may be given back, like intermediate results
+ * or evicted copies of the tile cache. Bitmaps that were handed to picasso or an image
+ * view might still be drawn and must never be pooled.
+ * <p>
+ * Decoding into a bitmap of a different size is only supported since kitkat, on
+ * older devices the pool stays empty and every decode allocates a new bitmap.
+ */
+@Singleton
+public class BitmapPool {
+    private static final Logger logger = LoggerFactory.getLogger("BitmapPool");
+
+    private static final boolean SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private final long maxSize;
+
+    // the pooled bitmaps by bucket and in the order they were pooled, guarded by this.
+    private final ListMultimap<String, Bitmap> buckets = ArrayListMultimap.create();
+    private final Set<Bitmap> ordered = new LinkedHashSet<>();
+    private long size;
+
+    private long hits, misses, puts, rejects, evictions;
+
+    @Inject
+    public BitmapPool() {
+        maxSize = Math.max(2 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16L);
+        logger.info("Initializing bitmap pool with about {}mb", maxSize / (1024 * 1024));
+    }
+
+    /**
+     * Returns a mutable bitmap of the given size and config from the pool or null, if there
+     * is no matching bitmap. The content of the bitmap is undefined.
+     */
+    @Nullable
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!SUPPORTED || width <= 0 || height <= 0)
+            return null;
+
+        int byteCount = width * height * bytesPerPixel(config);
+
+        // try the smallest matching bucket first, then the next larger one.
+        int bucket = Integer.highestOneBit(byteCount);
+        if (bucket < byteCount)
+            bucket <<= 1;
+
+        for (int idx = 0; idx < 2; idx++, bucket <<= 1) {
+            List<Bitmap> bitmaps = buckets.get(key(config, bucket));
+            if (!bitmaps.isEmpty()) {
+                Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+                ordered.remove(bitmap);
+                size -= bitmap.getAllocationByteCount();
+                hits++;
+
+                bitmap.reconfigure(width, height, config);
+                return bitmap;
+            }
+        }
+
+        misses++;
+        logStatsPeriodically();
+        return null;
+    }
+
+    /**
+     * Gives a bitmap back to the pool. The caller must own the bitmap and must not use it
+     * afterwards. Recycled or immutable bitmaps are ignored.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public synchronized void put(@Nullable Bitmap bitmap) {
+        if (bitmap == null || ordered.contains(bitmap))
+            return;
+
+        if (!SUPPORTED || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            rejects++;
+            return;
+        }
+
+        int byteCount = bitmap.getAllocationByteCount();
+        if (byteCount > maxSize / 4) {
+            rejects++;
+            return;
+        }
+
+        // a bitmap is put into the largest bucket it fits completely
+        buckets.put(key(bitmap.getConfig(), Integer.highestOneBit(byteCount)), bitmap);
+        ordered.add(bitmap);
+        size += byteCount;
+        puts++;
+
+        trimToSize();
+    }
+
+    /**
+     * Decodes the given image into a mutable bitmap, reusing a pooled bitmap if possible.
+     * Returns null, if the image could not be decoded.
+     */
+    @Nullable
+    public Bitmap decode(byte[] bytes, Bitmap.Config config) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = config;
+        options.inMutable = true;
+        options.inBitmap = get(options.outWidth, options.outHeight, config);
+
+        if (options.inBitmap != null) {
+            try {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+                if (bitmap != null)
+                    return bitmap;
+
+            } catch (IllegalArgumentException error) {
+                logger.warn("Could not decode into pooled bitmap: {}", error.toString());
+            }
+
+            put(options.inBitmap);
+            options.inBitmap = null;
+        }
+
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
+    /**
+     * Creates a mutable copy of the given bitmap, preferably in a pooled bitmap.
+     */
+    @Nullable
+    public Bitmap copyOf(Bitmap source) {
+        Bitmap.Config config = source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+
+        try {
+            Bitmap target = get(source.getWidth(), source.getHeight(), config);
+            if (target == null)
+                return source.copy(config, true);
+
+            target.eraseColor(Color.TRANSPARENT);
+            new Canvas(target).drawBitmap(source, 0, 0, null);
+            return target;
+
+        } catch (OutOfMemoryError oom) {
+            logger.warn("Not enough memory to copy a bitmap");
+            return null;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void trimToSize() {
+        Iterator<Bitmap> iterator = ordered.iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+
+            int byteCount = bitmap.getAllocationByteCount();
+            buckets.remove(key(bitmap.getConfig(), Integer.highestOneBit(byteCount)), bitmap);
+            size -= byteCount;
+            evictions++;
+        }
+    }
+
+    private void logStatsPeriodically() {
+        if ((hits + misses) % 500 == 0) {
+            logger.info("{}", this);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BitmapPool[size=%dkb, hits=%d, misses=%d, puts=%d, rejects=%d, evictions=%d]",
+                size / 1024, hits, misses, puts, rejects, evictions);
+    }
+
+    private static String key(Bitmap.Config config, int bucket) {
+        return config.name() + ":" + bucket;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+
+            default:
+                return 4;
+        }
+    }
+}
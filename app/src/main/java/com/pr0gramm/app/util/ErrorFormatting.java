@@ -13,6 +13,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.MalformedJsonException;
 import com.pr0gramm.app.R;
+import com.pr0gramm.app.api.pr0gramm.CircuitBreaker;
 import com.pr0gramm.app.api.pr0gramm.LoginCookieHandler;
 import com.pr0gramm.app.ui.PermissionHelper;
 
@@ -159,6 +160,9 @@ public class ErrorFormatting {
                 err -> err.code() / 100 == 5,
                 R.string.error_service_unavailable).doNotReport());
 
+        formatters.add(new Formatter<>(CircuitBreaker.OpenException.class,
+                R.string.error_service_unavailable).doNotReport());
+
         formatters.add(new Formatter<>(JsonSyntaxException.class,
                 R.string.error_json));
 
@@ -0,0 +1,231 @@
+package com.pr0gramm.app.util;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import android.support.v4.graphics.BitmapCompat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A memory cache for {@link com.squareup.picasso.Picasso} with two tiers. The first tier
+ * is a small lru cache of decoded bitmaps, the second one is a much larger lru cache of
+ * the encoded images. Picasso only knows about the first tier, the second one is filled
+ * and queried by the {@link com.pr0gramm.app.io.PartitionedDownloader}, so that decoding
+ * happens on picassos worker threads and not while binding a view.
+ * <p>
+ * Both tiers only take small images (as in the feed). Evicted bitmaps are left to the
+ * garbage collector, they might still be shown by a view.
+ */
+public class PicassoMemoryCache implements com.squareup.picasso.Cache {
+    private static final Logger logger = LoggerFactory.getLogger("PicassoMemoryCache");
+
+    private static final long MAX_BITMAP_SIZE = 128 * 128 * 4;
+    private static final long MAX_ENCODED_SIZE = 64 * 1024;
+
+    // picasso separates the uri from the rest of the key with a newline
+    private static final char KEY_SEPARATOR = '\n';
+
+    private final int maxDecodedSize;
+    private final int maxEncodedSize;
+
+    // both tiers in access order, all state is guarded by this.
+    private final LinkedHashMap<String, Bitmap> decoded = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, byte[]> encoded = new LinkedHashMap<>(64, 0.75f, true);
+
+    // keys of the decoded tier by the uri they belong to
+    private final Map<String, Set<String>> keysByUri = new HashMap<>();
+
+    private int decodedSize;
+    private int encodedSize;
+
+    private long decodedHits, decodedMisses, encodedHits, encodedMisses;
+
+    public PicassoMemoryCache(int maxDecodedSize, int maxEncodedSize) {
+        logger.info("Initializing cache with about {}mb decoded and {}mb encoded",
+                maxDecodedSize / (1024 * 1024), maxEncodedSize / (1024 * 1024));
+
+        this.maxDecodedSize = maxDecodedSize;
+        this.maxEncodedSize = maxEncodedSize;
+    }
+
+    @Override
+    public synchronized Bitmap get(String key) {
+        Bitmap bitmap = decoded.get(key);
+        if (bitmap != null) {
+            decodedHits++;
+        } else {
+            decodedMisses++;
+        }
+
+        return bitmap;
+    }
+
+    @Override
+    public synchronized void set(String key, Bitmap bitmap) {
+        int byteCount = BitmapCompat.getAllocationByteCount(bitmap);
+        if (byteCount > MAX_BITMAP_SIZE)
+            return;
+
+        Bitmap previous = decoded.put(key, bitmap);
+        if (previous != null) {
+            decodedSize -= BitmapCompat.getAllocationByteCount(previous);
+        }
+
+        decodedSize += byteCount;
+        indexKey(key);
+
+        trimDecoded();
+    }
+
+    /**
+     * Returns the encoded image of the given uri, or null, if it is not in the cache.
+     */
+    @Nullable
+    public synchronized byte[] getEncoded(String uri) {
+        byte[] bytes = encoded.get(uri);
+        if (bytes != null) {
+            encodedHits++;
+        } else {
+            encodedMisses++;
+        }
+
+        logStatsPeriodically();
+        return bytes;
+    }
+
+    /**
+     * Checks if an encoded image of the given size would be taken by the cache.
+     */
+    public static boolean acceptsEncoded(long byteCount) {
+        return byteCount >= 0 && byteCount <= MAX_ENCODED_SIZE;
+    }
+
+    /**
+     * Puts the encoded image of the given uri into the cache, if it is small enough.
+     */
+    public synchronized void putEncoded(String uri, byte[] bytes) {
+        if (!acceptsEncoded(bytes.length))
+            return;
+
+        byte[] previous = encoded.put(uri, bytes);
+        if (previous != null) {
+            encodedSize -= previous.length;
+        }
+
+        encodedSize += bytes.length;
+        trimEncoded();
+    }
+
+    @Override
+    public synchronized int size() {
+        return decodedSize;
+    }
+
+    @Override
+    public int maxSize() {
+        return maxDecodedSize;
+    }
+
+    @Override
+    public synchronized void clear() {
+        decoded.clear();
+        encoded.clear();
+        keysByUri.clear();
+
+        decodedSize = 0;
+        encodedSize = 0;
+    }
+
+    @Override
+    public synchronized void clearKeyUri(String uri) {
+        Set<String> keys = keysByUri.remove(uri);
+        if (keys != null) {
+            for (String key : keys) {
+                Bitmap bitmap = decoded.remove(key);
+                if (bitmap != null) {
+                    decodedSize -= BitmapCompat.getAllocationByteCount(bitmap);
+                }
+            }
+        }
+
+        byte[] bytes = encoded.remove(uri);
+        if (bytes != null) {
+            encodedSize -= bytes.length;
+        }
+    }
+
+    private void trimDecoded() {
+        Iterator<Map.Entry<String, Bitmap>> iterator = decoded.entrySet().iterator();
+        while (decodedSize > maxDecodedSize && iterator.hasNext()) {
+            Map.Entry<String, Bitmap> entry = iterator.next();
+            iterator.remove();
+
+            unindexKey(entry.getKey());
+            decodedSize -= BitmapCompat.getAllocationByteCount(entry.getValue());
+        }
+    }
+
+    private void trimEncoded() {
+        Iterator<byte[]> iterator = encoded.values().iterator();
+        while (encodedSize > maxEncodedSize && iterator.hasNext()) {
+            encodedSize -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    private void indexKey(String key) {
+        String uri = uriOf(key);
+        Set<String> keys = keysByUri.get(uri);
+        if (keys == null) {
+            keys = new HashSet<>();
+            keysByUri.put(uri, keys);
+        }
+
+        keys.add(key);
+    }
+
+    private void unindexKey(String key) {
+        String uri = uriOf(key);
+        Set<String> keys = keysByUri.get(uri);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            keysByUri.remove(uri);
+        }
+    }
+
+    private void logStatsPeriodically() {
+        if ((encodedHits + encodedMisses) % 250 == 0) {
+            logger.info("{}", this);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("PicassoMemoryCache[decoded=%dkb, hitRate=%.2f, encoded=%dkb, hitRate=%.2f]",
+                decodedSize / 1024, hitRate(decodedHits, decodedMisses),
+                encodedSize / 1024, hitRate(encodedHits, encodedMisses));
+    }
+
+    private static double hitRate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+    }
+
+    private static String uriOf(String key) {
+        int idx = key.indexOf(KEY_SEPARATOR);
+        return idx >= 0 ? key.substring(0, idx) : key;
+    }
+
+    public static PicassoMemoryCache defaultSizedCache() {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        int maxDecodedSize = (int) Math.max(4 * 1024 * 1024, maxMemory / 32L);
+        int maxEncodedSize = (int) Math.max(4 * 1024 * 1024, maxMemory / 16L);
+        return new PicassoMemoryCache(maxDecodedSize, maxEncodedSize);
+    }
+}
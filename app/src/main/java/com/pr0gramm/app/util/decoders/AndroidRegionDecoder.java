@@ -10,31 +10,58 @@ import android.graphics.Rect;
 import android.net.Uri;
 
 import com.davemorrissey.labs.subscaleview.decoder.ImageRegionDecoder;
+import com.pr0gramm.app.util.BitmapPool;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static com.pr0gramm.app.util.AndroidUtility.toFile;
 
 /**
- * Default decoder using android region decoder.
+ * Default decoder using android region decoder. A single {@link BitmapRegionDecoder}
+ * decodes one region at a time, so this decoder keeps a small pool of decoders over
+ * the same file. This way multiple tiles can be decoded in parallel. Tiles are
+ * decoded into bitmaps of the {@link BitmapPool} if possible.
  */
 public class AndroidRegionDecoder implements ImageRegionDecoder {
+    private static final Logger logger = LoggerFactory.getLogger("AndroidRegionDecoder");
+    private static final int MAX_DECODERS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors()));
+
+    private final Bitmap.Config config;
+    private final BitmapPool bitmapPool;
 
-    private BitmapRegionDecoder decoder;
-    private Bitmap.Config config;
+    // idle decoders and all decoders ever created. Changes to the pool are guarded by "decoders".
+    private final BlockingQueue<BitmapRegionDecoder> idle = new LinkedBlockingQueue<>();
+    private final List<BitmapRegionDecoder> decoders = new ArrayList<>();
 
-    public AndroidRegionDecoder(Bitmap.Config config) {
+    private File file;
+    private volatile boolean recycled;
+
+    public AndroidRegionDecoder(Bitmap.Config config, BitmapPool bitmapPool) {
         this.config = config;
+        this.bitmapPool = bitmapPool;
     }
 
-    @SuppressLint("NewApi")
     @Override
     public Point init(Context context, Uri uri) throws Exception {
         if (!"file".equals(uri.getScheme()))
             throw new IllegalArgumentException("Must be a file:// uri");
 
-        try (FileInputStream input = new FileInputStream(toFile(uri))) {
-            decoder = BitmapRegionDecoder.newInstance(input.getFD(), false);
+        file = toFile(uri);
+
+        BitmapRegionDecoder decoder = newDecoder();
+        synchronized (decoders) {
+            decoders.add(decoder);
+            idle.add(decoder);
         }
 
         return new Point(decoder.getWidth(), decoder.getHeight());
@@ -42,21 +69,110 @@ public class AndroidRegionDecoder implements ImageRegionDecoder {
 
     @Override
     public Bitmap decodeRegion(Rect rect, int sampleSize) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inPreferredConfig = config;
-        options.inSampleSize = sampleSize;
-        return decoder.decodeRegion(rect, options);
+        BitmapRegionDecoder decoder = acquire();
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = config;
+            options.inSampleSize = sampleSize;
+            options.inMutable = true;
+
+            int width = (rect.width() + sampleSize - 1) / sampleSize;
+            int height = (rect.height() + sampleSize - 1) / sampleSize;
+            options.inBitmap = bitmapPool.get(width, height, config);
+
+            if (options.inBitmap != null) {
+                try {
+                    return decoder.decodeRegion(rect, options);
+
+                } catch (IllegalArgumentException error) {
+                    logger.warn("Could not decode into pooled bitmap: {}", error.toString());
+                    bitmapPool.put(options.inBitmap);
+                    options.inBitmap = null;
+                }
+            }
+
+            return decoder.decodeRegion(rect, options);
+
+        } finally {
+            release(decoder);
+        }
+    }
+
+    /**
+     * Takes an idle decoder from the pool. If there is none, a new decoder
+     * is opened as long as there are less than {@link #MAX_DECODERS}.
+     */
+    private BitmapRegionDecoder acquire() {
+        if (recycled)
+            throw new IllegalStateException("Decoder was already recycled");
+
+        BitmapRegionDecoder decoder = idle.poll();
+        if (decoder != null)
+            return decoder;
+
+        synchronized (decoders) {
+            if (decoders.size() < MAX_DECODERS && !recycled) {
+                try {
+                    decoder = newDecoder();
+                    decoders.add(decoder);
+                    return decoder;
+
+                } catch (IOException error) {
+                    if (decoders.isEmpty())
+                        throw new RuntimeException("Could not open region decoder", error);
+                }
+            }
+        }
+
+        try {
+            while (decoder == null) {
+                if (recycled)
+                    throw new IllegalStateException("Decoder was recycled while waiting");
+
+                decoder = idle.poll(100, TimeUnit.MILLISECONDS);
+            }
+
+            return decoder;
+
+        } catch (InterruptedException error) {
+            throw new RuntimeException("Interrupted while waiting for a region decoder", error);
+        }
+    }
+
+    private void release(BitmapRegionDecoder decoder) {
+        synchronized (decoders) {
+            if (recycled) {
+                decoder.recycle();
+            } else {
+                idle.add(decoder);
+            }
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private BitmapRegionDecoder newDecoder() throws IOException {
+        try (FileInputStream input = new FileInputStream(file)) {
+            return BitmapRegionDecoder.newInstance(input.getFD(), false);
+        }
     }
 
     @Override
     public boolean isReady() {
-        return decoder != null && !decoder.isRecycled();
+        synchronized (decoders) {
+            return !decoders.isEmpty() && !recycled;
+        }
     }
 
     @Override
     public void recycle() {
-        if (decoder != null) {
-            decoder.recycle();
+        synchronized (decoders) {
+            recycled = true;
+
+            // decoders that are currently in use are recycled once they are released.
+            BitmapRegionDecoder decoder;
+            while ((decoder = idle.poll()) != null) {
+                decoder.recycle();
+            }
         }
     }
 }
@@ -3,18 +3,19 @@ package com.pr0gramm.app.util.decoders;
 import android.graphics.Bitmap;
 
 import com.davemorrissey.labs.subscaleview.decoder.ImageRegionDecoder;
-import com.squareup.picasso.Downloader;
+import com.pr0gramm.app.io.MediaCache;
+import com.pr0gramm.app.util.BitmapPool;
 
 /**
  * A class
  */
 public class Decoders {
-    public static ImageRegionDecoder regionDecoder(Downloader downloader) {
+    public static ImageRegionDecoder regionDecoder(MediaCache mediaCache, TileCache tileCache, BitmapPool bitmapPool) {
         //noinspection unchecked
-        return new DownloadingRegionDecoder(downloader,
+        return new DownloadingRegionDecoder(mediaCache, tileCache,
                 FallbackRegionDecoder.chain(
-                        new AndroidRegionDecoder(Bitmap.Config.RGB_565),
-                        new AndroidRegionDecoder(Bitmap.Config.ARGB_8888),
+                        new AndroidRegionDecoder(Bitmap.Config.RGB_565, bitmapPool),
+                        new AndroidRegionDecoder(Bitmap.Config.ARGB_8888, bitmapPool),
                         new SimpleRegionDecoder(Bitmap.Config.RGB_565),
                         new SimpleRegionDecoder(Bitmap.Config.ARGB_8888)
                 ));
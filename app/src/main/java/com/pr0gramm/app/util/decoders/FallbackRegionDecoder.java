@@ -16,8 +16,6 @@ import java.util.Arrays;
 
 import javax.annotation.Nullable;
 
-import static com.google.common.base.Preconditions.checkState;
-
 /**
  * This decoder has a reference to two decoders and initializes and uses the fallback
  * decoder if the firstone encounters an error.
@@ -28,8 +26,9 @@ public class FallbackRegionDecoder implements ImageRegionDecoder {
 
     private Supplier<ImageRegionDecoder> fallbackSupplier;
 
+    // tiles might be decoded in parallel, so all threads must see the switch.
     @Nullable
-    private ImageRegionDecoder fallback;
+    private volatile ImageRegionDecoder fallback;
 
     public FallbackRegionDecoder(ImageRegionDecoder decoder, Supplier<ImageRegionDecoder> fallbackSupplier) {
         this.decoder = decoder;
@@ -93,13 +92,17 @@ public class FallbackRegionDecoder implements ImageRegionDecoder {
         return fallback != null ? fallback : decoder;
     }
 
-    private void switchToFallback() {
+    private synchronized void switchToFallback() {
+        if (fallback != null) {
+            // an other thread already switched while we were decoding
+            return;
+        }
+
         try {
             decoder.recycle();
         } catch (Exception ignored) {
         }
 
-        checkState(fallback == null, "Fallback already assigned");
         fallback = fallbackSupplier.get();
 
         logger.info("Using fallback decoder {}", fallback);
@@ -0,0 +1,88 @@
+package com.pr0gramm.app.util.decoders;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.support.annotation.Nullable;
+import android.support.v4.graphics.BitmapCompat;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.pr0gramm.app.util.BitmapPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * A memory bounded lru cache of decoded tiles. Tiles are identified by the image they
+ * belong to, their region and their sample size. The cache lives as long as the app,
+ * so tiles survive leaving and returning to a post or opening the zoom view.
+ * <p>
+ * The image view recycles the tiles it no longer shows, so the cache only ever
+ * hands out copies of the bitmaps it holds. Every tile that is shown therefore exists
+ * twice, so the cache only gets half of the memory we are willing to spend on tiles.
+ * Copies are made into pooled bitmaps and evicted tiles go back to the {@link BitmapPool},
+ * so the copies rarely allocate. Eviction and copying are guarded by the same lock, so
+ * a tile can not be reused while it is copied.
+ */
+@Singleton
+public class TileCache {
+    private static final Logger logger = LoggerFactory.getLogger("TileCache");
+
+    private final BitmapPool bitmapPool;
+    private final Cache<String, Bitmap> cache;
+
+    @Inject
+    public TileCache(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+
+        long maxSize = Math.max(4 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16L);
+        logger.info("Initializing tile cache with about {}mb", maxSize / (1024 * 1024));
+
+        cache = CacheBuilder.<String, Bitmap>newBuilder()
+                .weigher((String key, Bitmap bitmap) -> BitmapCompat.getAllocationByteCount(bitmap))
+                .maximumWeight(maxSize)
+                .removalListener(notification -> bitmapPool.put(notification.getValue()))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns a copy of the cached tile or null, if the tile is not in the cache.
+     */
+    @Nullable
+    public synchronized Bitmap get(String image, Rect rect, int sampleSize) {
+        Bitmap bitmap = cache.getIfPresent(key(image, rect, sampleSize));
+        if (bitmap == null)
+            return null;
+
+        return bitmapPool.copyOf(bitmap);
+    }
+
+    /**
+     * Puts a copy of the given tile into the cache. The caller keeps ownership of the tile.
+     */
+    public synchronized void put(String image, Rect rect, int sampleSize, Bitmap tile) {
+        String key = key(image, rect, sampleSize);
+        if (cache.getIfPresent(key) != null) {
+            // tiles are loaded in parallel, someone else was faster.
+            return;
+        }
+
+        Bitmap copy = bitmapPool.copyOf(tile);
+        if (copy != null) {
+            cache.put(key, copy);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TileCache[" + cache.stats() + "]";
+    }
+
+    private static String key(String image, Rect rect, int sampleSize) {
+        return image + ":" + rect.left + "," + rect.top + "," + rect.right + "," + rect.bottom + ":" + sampleSize;
+    }
+}